@@ -0,0 +1,43 @@
+package legacy.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Foreign keys of an entity loaded by getForeignKey or getForeignKeysCollection. Relations already
+ * loaded for the current value are not recorded.
+ */
+@Name("legacy.ForeignKeyMount")
+@Label("Legacy Foreign Key Mount")
+@Category({"Legacy", "Mapping"})
+@Description("Foreign key relations loaded on demand")
+public final class LegacyForeignKeyMount extends Event {
+
+    @Label("Entity Class")
+    Class<?> entityClass;
+
+    @Label("Fields")
+    @Description("Foreign key columns loaded, comma separated")
+    String fields;
+
+    @Label("Relations")
+    int relationCount;
+
+    @Label("Parallel")
+    @Description("Relations loaded concurrently on virtual threads")
+    boolean parallel;
+
+    public void commit(Class<?> entityClass, String fields, int relationCount, boolean parallel) {
+        end();
+        if (shouldCommit()) {
+            this.entityClass = entityClass;
+            this.fields = fields;
+            this.relationCount = relationCount;
+            this.parallel = parallel;
+            commit();
+        }
+    }
+}
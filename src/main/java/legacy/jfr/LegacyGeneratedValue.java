@@ -0,0 +1,36 @@
+package legacy.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * One value produced by a @Generated strategy before an insert.
+ */
+@Name("legacy.GeneratedValue")
+@Label("Legacy Generated Value")
+@Category({"Legacy", "Mapping"})
+@Description("Value generated by a @Generated strategy")
+public final class LegacyGeneratedValue extends Event {
+
+    @Label("Entity Class")
+    Class<?> entityClass;
+
+    @Label("Field")
+    String field;
+
+    @Label("Strategy")
+    Class<?> strategy;
+
+    public void commit(Class<?> entityClass, String field, Class<?> strategy) {
+        end();
+        if (shouldCommit()) {
+            this.entityClass = entityClass;
+            this.field = field;
+            this.strategy = strategy;
+            commit();
+        }
+    }
+}
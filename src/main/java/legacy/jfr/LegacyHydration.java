@@ -0,0 +1,32 @@
+package legacy.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Rows turned into entities, by a typed select (reading the ResultSet included) or by RawObject.toEntity.
+ */
+@Name("legacy.Hydration")
+@Label("Legacy Hydration")
+@Category({"Legacy", "Mapping"})
+@Description("Rows mapped to entity instances")
+public final class LegacyHydration extends Event {
+
+    @Label("Entity Class")
+    Class<?> entityClass;
+
+    @Label("Rows")
+    long rowCount;
+
+    public void commit(Class<?> entityClass, long rowCount) {
+        end();
+        if (shouldCommit()) {
+            this.entityClass = entityClass;
+            this.rowCount = rowCount;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package legacy.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * One statement run by QueryManager, from the first bind to the last row read
+ * (for streams, until the stream is closed).
+ */
+@Name("legacy.Query")
+@Label("Legacy Query")
+@Category({"Legacy", "Database"})
+@Description("SQL statement run by QueryManager")
+@StackTrace(true)
+public final class LegacyQuery extends Event {
+
+    // isEnabled only reads the state of the event class, any instance can answer it
+    private static final LegacyQuery PROBE = new LegacyQuery();
+
+    @Label("SQL")
+    String sql;
+
+    @Label("Entity Class")
+    Class<?> entityClass;
+
+    @Label("Bind Count")
+    int bindCount;
+
+    @Label("Pool Wait")
+    @Timespan(Timespan.NANOSECONDS)
+    long poolWait;
+
+    @Label("Rows")
+    @Description("Rows read, or rows affected by an update or a batch; -1 on failure")
+    long rowCount;
+
+    @Label("Failed")
+    boolean failed;
+
+    public static boolean isRecording() {
+        return PROBE.isEnabled();
+    }
+
+    public void commit(String sql, Class<?> entityClass, int bindCount, long poolWaitNanos, long rowCount, boolean failed) {
+        end();
+        if (shouldCommit()) {
+            this.sql = sql;
+            this.entityClass = entityClass;
+            this.bindCount = bindCount;
+            this.poolWait = poolWaitNanos;
+            this.rowCount = rowCount;
+            this.failed = failed;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package legacy.metrics;
+
+import com.zaxxer.hikari.HikariPoolMXBean;
+import legacy.query.QueryEvent;
+import legacy.query.QueryListener;
+import legacy.query.QueryManager;
+import legacy.utils.DbConn;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process query metrics: a latency histogram and row counters per SQL statement, the time spent
+ * waiting for the pool, and gauges of the Hikari pools.
+ * <pre>
+ * MetricsRegistry metrics = MetricsRegistry.install();
+ * metrics.getStatements().forEach(System.out::println);
+ * </pre>
+ */
+public class MetricsRegistry implements QueryListener {
+
+    // statements past this many distinct SQL texts are counted together under OTHER
+    private static final int MAX_STATEMENTS = 500;
+    public static final String OTHER = "(other)";
+
+    private final Map<String, StatementMetrics> statements = new ConcurrentHashMap<>();
+    private final LatencyHistogram poolWait = new LatencyHistogram();
+    private final LongAdder rowsMapped = new LongAdder();
+
+    public record StatementStats(String sql, long count, long errors, long rows,
+                                 long p50Nanos, long p95Nanos, long p99Nanos, long maxNanos, double meanNanos) {
+    }
+
+    public record PoolStats(String name, int active, int idle, int total, int awaiting) {
+    }
+
+    public static MetricsRegistry install() {
+        MetricsRegistry registry = new MetricsRegistry();
+        QueryManager.addListener(registry);
+        return registry;
+    }
+
+    public void uninstall() {
+        QueryManager.removeListener(this);
+    }
+
+    @Override
+    public void afterQuery(QueryEvent event) {
+        StatementMetrics metrics = statements.get(event.getSql());
+        if (metrics == null) {
+            String key = statements.size() < MAX_STATEMENTS ? event.getSql() : OTHER;
+            metrics = statements.computeIfAbsent(key, k -> new StatementMetrics());
+        }
+        metrics.latency.record(event.getDurationNanos());
+        if (event.isFailed()) {
+            metrics.errors.increment();
+        } else {
+            metrics.rows.add(event.getRowCount());
+            rowsMapped.add(event.getRowCount());
+        }
+        poolWait.record(event.getPoolWaitNanos());
+    }
+
+    public List<StatementStats> getStatements() {
+        List<StatementStats> stats = new ArrayList<>();
+        statements.forEach((sql, metrics) -> stats.add(new StatementStats(sql,
+                metrics.latency.getCount(), metrics.errors.sum(), metrics.rows.sum(),
+                metrics.latency.getValueAtPercentile(50), metrics.latency.getValueAtPercentile(95),
+                metrics.latency.getValueAtPercentile(99), metrics.latency.getMax(), metrics.latency.getMean())));
+        return stats;
+    }
+
+    public LatencyHistogram getLatency(String sql) {
+        StatementMetrics metrics = statements.get(sql);
+        return metrics == null ? null : metrics.latency;
+    }
+
+    public LatencyHistogram getPoolWait() {
+        return poolWait;
+    }
+
+    public long getRowsMapped() {
+        return rowsMapped.sum();
+    }
+
+    public List<PoolStats> getPools() {
+        List<PoolStats> stats = new ArrayList<>();
+        for (Map.Entry<String, HikariPoolMXBean> e : DbConn.getPoolStatistics().entrySet()) {
+            HikariPoolMXBean pool = e.getValue();
+            stats.add(new PoolStats(e.getKey(), pool.getActiveConnections(), pool.getIdleConnections(),
+                    pool.getTotalConnections(), pool.getThreadsAwaitingConnection()));
+        }
+        return stats;
+    }
+
+    public void reset() {
+        statements.clear();
+        poolWait.reset();
+        rowsMapped.reset();
+    }
+
+    private static class StatementMetrics {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder rows = new LongAdder();
+        final LongAdder errors = new LongAdder();
+    }
+}
@@ -0,0 +1,235 @@
+package legacy.metrics;
+
+import legacy.query.QueryEvent;
+import legacy.query.QueryListener;
+import legacy.query.QueryManager;
+import legacy.schema.BaseEntity;
+
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Logs statements slower than a threshold, with the normalized SQL, the entity class, the BaseEntity
+ * method and the application frame that ran them. Bind parameter values are never logged, only their types.
+ * A fraction of the faster statements can be sampled to get a baseline.
+ * <pre>
+ * SlowQueryLog slowLog = SlowQueryLog.install(200, 0.001);
+ * </pre>
+ * Records go through a bounded queue drained by a daemon thread to the "legacy.query.slow"
+ * System.Logger: the querying thread never blocks on logging, and records are dropped when the queue is full.
+ */
+public class SlowQueryLog implements QueryListener, AutoCloseable {
+
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final System.Logger LOGGER = System.getLogger("legacy.query.slow");
+    private static final StackWalker WALKER = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
+
+    private final long thresholdNanos;
+    private final double sampleRate;
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    private record Entry(boolean slow, QueryEvent event, String entityMethod, String caller) {
+    }
+
+    /**
+     * thresholdMillis: statements at least this slow are logged as WARNING.
+     * sampleRate: fraction (0 to 1) of the other statements logged as INFO, 0 to disable sampling.
+     */
+    public SlowQueryLog(long thresholdMillis, double sampleRate) {
+        if (thresholdMillis < 0) {
+            throw new IllegalArgumentException("[LEGACY ERROR] Slow query threshold must be positive or zero, got " + thresholdMillis);
+        }
+        if (sampleRate < 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("[LEGACY ERROR] Slow query sample rate must be between 0 and 1, got " + sampleRate);
+        }
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.sampleRate = sampleRate;
+        this.writer = new Thread(this::drain, "legacy-slow-query-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public static SlowQueryLog install(long thresholdMillis, double sampleRate) {
+        SlowQueryLog log = new SlowQueryLog(thresholdMillis, sampleRate);
+        QueryManager.addListener(log);
+        return log;
+    }
+
+    // unregisters the listener, logs what is still queued and stops the writer thread
+    @Override
+    public void close() {
+        QueryManager.removeListener(this);
+        closed = true;
+        writer.interrupt();
+    }
+
+    @Override
+    public void afterQuery(QueryEvent event) {
+        boolean slow = event.getDurationNanos() >= thresholdNanos;
+        if (!slow && (sampleRate == 0 || ThreadLocalRandom.current().nextDouble() >= sampleRate)) {
+            return;
+        }
+        // the stack walk is the expensive part: skip it when the record would be dropped anyway
+        if (queue.remainingCapacity() == 0) {
+            dropped.increment();
+            return;
+        }
+        String[] frames = WALKER.walk(SlowQueryLog::findCallers);
+        if (!queue.offer(new Entry(slow, event, frames[0], frames[1]))) {
+            dropped.increment();
+        }
+    }
+
+    // records lost because the queue was full
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getThresholdMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(thresholdNanos);
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    // [0]: outermost BaseEntity method of the call, [1]: first frame outside Legacy
+    private static String[] findCallers(java.util.stream.Stream<StackWalker.StackFrame> frames) {
+        String[] callers = new String[2];
+        Optional<StackWalker.StackFrame> caller = frames.filter(frame -> {
+            Class<?> declaring = frame.getDeclaringClass();
+            String name = declaring.getName();
+            if (BaseEntity.class.isAssignableFrom(declaring)) {
+                callers[0] = format(frame);
+                // a finder declared on the entity class itself is application code
+                return !name.startsWith("legacy.");
+            }
+            return !name.startsWith("legacy.") && !name.startsWith("java.") && !name.startsWith("jdk.");
+        }).findFirst();
+        callers[1] = caller.map(SlowQueryLog::format).orElse(null);
+        return callers;
+    }
+
+    private static String format(StackWalker.StackFrame frame) {
+        return frame.getDeclaringClass().getSimpleName() + "." + frame.getMethodName()
+                + "(" + frame.getFileName() + ":" + frame.getLineNumber() + ")";
+    }
+
+    private void drain() {
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Entry entry = closed ? queue.poll() : queue.take();
+                if (entry != null) {
+                    write(entry);
+                }
+            } catch (InterruptedException e) {
+                // close() was called: loop once more to flush the queue
+            } catch (RuntimeException e) {
+                // a broken logger must not kill the writer thread
+            }
+        }
+    }
+
+    private void write(Entry entry) {
+        System.Logger.Level level = entry.slow() ? System.Logger.Level.WARNING : System.Logger.Level.INFO;
+        if (!LOGGER.isLoggable(level)) {
+            return;
+        }
+        QueryEvent event = entry.event();
+        StringBuilder message = new StringBuilder(entry.slow() ? "Slow query " : "Sampled query ");
+        message.append(TimeUnit.NANOSECONDS.toMillis(event.getDurationNanos())).append(" ms");
+        message.append(", pool wait ").append(TimeUnit.NANOSECONDS.toMillis(event.getPoolWaitNanos())).append(" ms");
+        if (event.isFailed()) {
+            message.append(", failed: ").append(event.getError().getClass().getSimpleName());
+        } else {
+            message.append(", ").append(event.getRowCount()).append(" rows");
+        }
+        if (event.getEntityClass() != null) {
+            message.append(", entity ").append(event.getEntityClass().getName());
+        }
+        if (entry.entityMethod() != null) {
+            message.append(", via ").append(entry.entityMethod());
+        }
+        if (entry.caller() != null) {
+            message.append(", called from ").append(entry.caller());
+        }
+        message.append("\n  ").append(normalize(event.getSql()));
+        message.append("\n  params ").append(redact(event));
+        LOGGER.log(level, message.toString());
+    }
+
+    // bind values may hold personal data: only their types are logged
+    static String redact(QueryEvent event) {
+        Object[] params = event.getParams();
+        if (params == null) {
+            return "(" + event.getBindCount() + " bound)";
+        }
+        StringBuilder redacted = new StringBuilder("[");
+        for (int i = 0; i < params.length; i++) {
+            if (i > 0) {
+                redacted.append(", ");
+            }
+            redacted.append(params[i] == null ? "null" : params[i].getClass().getSimpleName());
+        }
+        return redacted.append("]").toString();
+    }
+
+    /**
+     * SQL template of a statement: string and numeric literals become ?, IN lists collapse to a
+     * single ? and whitespace is collapsed, so that the same query logs the same text whatever its values.
+     */
+    static String normalize(String sql) {
+        StringBuilder normalized = new StringBuilder(sql.length());
+        int i = 0;
+        while (i < sql.length()) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                // string literal, '' is an escaped quote
+                i++;
+                while (i < sql.length()) {
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < sql.length() && sql.charAt(i + 1) == '\'') {
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                normalized.append('?');
+                i++;
+            } else if (Character.isDigit(c) && !endsWithIdentifier(normalized)) {
+                while (i < sql.length() && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                normalized.append('?');
+            } else if (Character.isWhitespace(c)) {
+                while (i < sql.length() && Character.isWhitespace(sql.charAt(i))) {
+                    i++;
+                }
+                if (normalized.length() > 0) {
+                    normalized.append(' ');
+                }
+            } else {
+                normalized.append(c);
+                i++;
+            }
+        }
+        return normalized.toString().trim().replaceAll("\\(\\?(?:\\s*,\\s*\\?)+\\)", "(?)");
+    }
+
+    private static boolean endsWithIdentifier(StringBuilder sql) {
+        if (sql.length() == 0) {
+            return false;
+        }
+        char last = sql.charAt(sql.length() - 1);
+        return Character.isLetterOrDigit(last) || last == '_' || last == '"' || last == '$';
+    }
+}
@@ -0,0 +1,69 @@
+package legacy.query;
+
+/**
+ * An aggregate computed by the database, see BaseEntity.aggregate.
+ * Each aggregate is labelled with its alias, by default the function and the column ("sum_montant").
+ */
+public class Agg {
+    private final String function;
+    private final String column;
+    private final boolean distinct;
+    private final String alias;
+
+    private Agg(String function, String column, boolean distinct, String alias) {
+        this.function = function;
+        this.column = column;
+        this.distinct = distinct;
+        this.alias = alias;
+    }
+
+    public static Agg count() {
+        return new Agg("COUNT", null, false, "count");
+    }
+
+    public static Agg count(String column) {
+        return of("COUNT", column);
+    }
+
+    public static Agg countDistinct(String column) {
+        return new Agg("COUNT", column, true, "count_distinct_" + column);
+    }
+
+    public static Agg sum(String column) {
+        return of("SUM", column);
+    }
+
+    public static Agg avg(String column) {
+        return of("AVG", column);
+    }
+
+    public static Agg min(String column) {
+        return of("MIN", column);
+    }
+
+    public static Agg max(String column) {
+        return of("MAX", column);
+    }
+
+    private static Agg of(String function, String column) {
+        return new Agg(function, column, false, function.toLowerCase() + "_" + column);
+    }
+
+    public Agg as(String alias) {
+        return new Agg(function, column, distinct, alias);
+    }
+
+    // the aggregated column, null for count()
+    public String getColumn() {
+        return column;
+    }
+
+    public String getAlias() {
+        return alias;
+    }
+
+    // column and alias are written as is: BaseEntity.aggregate checks them against the entity first
+    public String toSql() {
+        return function + "(" + (column == null ? "*" : (distinct ? "DISTINCT " : "") + column) + ") AS " + alias;
+    }
+}
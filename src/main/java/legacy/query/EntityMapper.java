@@ -0,0 +1,120 @@
+package legacy.query;
+
+import legacy.schema.BaseEntity;
+import legacy.schema.ColumnData;
+import legacy.schema.EntityMetadata;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Maps the rows of one ResultSet straight into entities.
+ * Column labels are resolved against the entity metadata once per ResultSetMetaData,
+ * so each row only costs the getObject calls and the setter calls.
+ */
+public class EntityMapper<T extends BaseEntity> {
+    private final Class<T> entityClass;
+    private final EntityMetadata metadata;
+    private final ColumnData[] columns;
+    // tables joined by a Fetch, in the order of its foreign keys
+    private final Joined[] joined;
+
+    public EntityMapper(Class<T> entityClass, ResultSetMetaData meta) throws SQLException {
+        this(entityClass, meta, null);
+    }
+
+    /**
+     * With a Fetch, the columns are expected to be labelled by Fetch.columnLabel and the target of each
+     * joined foreign key is hydrated from the same row into the entity's ForeignKeysCollection.
+     */
+    public EntityMapper(Class<T> entityClass, ResultSetMetaData meta, Fetch fetch) throws SQLException {
+        this.entityClass = entityClass;
+        this.metadata = EntityMetadata.of(entityClass);
+
+        int columnCount = meta.getColumnCount();
+        this.columns = new ColumnData[columnCount];
+        if (fetch == null) {
+            for (int i = 1; i <= columnCount; i++) {
+                columns[i - 1] = metadata.getColumn(meta.getColumnLabel(i));
+            }
+            this.joined = new Joined[0];
+            return;
+        }
+
+        List<String> foreignKeys = fetch.getForeignKeys();
+        this.joined = new Joined[foreignKeys.size()];
+        for (int t = 0; t < joined.length; t++) {
+            ColumnData foreignKey = metadata.getForeignKeyColumn(foreignKeys.get(t));
+            if (foreignKey == null) {
+                throw new IllegalArgumentException("Foreign key field '" + foreignKeys.get(t) + "' not found in entity '" + entityClass.getSimpleName() + "'");
+            }
+            joined[t] = new Joined(foreignKey, EntityMetadata.of(foreignKey.getForeignKey().entity()), columnCount);
+        }
+        for (int i = 1; i <= columnCount; i++) {
+            String label = meta.getColumnLabel(i);
+            int separator = label.indexOf('_');
+            if (!label.startsWith("t") || separator < 0) {
+                continue;
+            }
+            int table = Integer.parseInt(label.substring(1, separator));
+            int column = Integer.parseInt(label.substring(separator + 1));
+            if (table == 0) {
+                columns[i - 1] = metadata.getColumns().get(column);
+            } else {
+                joined[table - 1].columns[i - 1] = joined[table - 1].metadata.getColumns().get(column);
+            }
+        }
+    }
+
+    public T map(ResultSet rs) throws Exception {
+        T instance = entityClass.cast(metadata.newInstance());
+        for (int i = 0; i < columns.length; i++) {
+            ColumnData column = columns[i];
+            if (column == null) {
+                continue;
+            }
+            Object value = rs.getObject(i + 1);
+            column.hydrate(instance, RawObject.convertValue(value, column.getType()));
+        }
+        for (Joined table : joined) {
+            table.foreignKey.hydrateForeignKey(instance, table.map(rs));
+        }
+        return instance;
+    }
+
+    private static class Joined {
+        final ColumnData foreignKey;
+        final EntityMetadata metadata;
+        final ColumnData[] columns;
+
+        Joined(ColumnData foreignKey, EntityMetadata metadata, int columnCount) {
+            this.foreignKey = foreignKey;
+            this.metadata = metadata;
+            this.columns = new ColumnData[columnCount];
+        }
+
+        // null when the LEFT JOIN found no row, i.e. every joined column is null
+        BaseEntity map(ResultSet rs) throws Exception {
+            Object[] values = new Object[columns.length];
+            boolean found = false;
+            for (int i = 0; i < columns.length; i++) {
+                if (columns[i] != null) {
+                    values[i] = rs.getObject(i + 1);
+                    found |= values[i] != null;
+                }
+            }
+            if (!found) {
+                return null;
+            }
+            BaseEntity target = (BaseEntity) metadata.newInstance();
+            for (int i = 0; i < columns.length; i++) {
+                if (columns[i] != null) {
+                    columns[i].hydrate(target, RawObject.convertValue(values[i], columns[i].getType()));
+                }
+            }
+            return target;
+        }
+    }
+}
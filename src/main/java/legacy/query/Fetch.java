@@ -0,0 +1,32 @@
+package legacy.query;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Foreign keys to load together with their entity, in the same query, instead of lazily.
+ * <pre>BaseEntity.filter(Vol.class, filterSet, Fetch.join("id_aeroport_depart"))</pre>
+ */
+public class Fetch {
+    private final List<String> foreignKeys;
+
+    private Fetch(List<String> foreignKeys) {
+        this.foreignKeys = foreignKeys;
+    }
+
+    public static Fetch join(String... foreignKeys) {
+        if (foreignKeys.length == 0) {
+            throw new IllegalArgumentException("Fetch.join requires at least one foreign key");
+        }
+        return new Fetch(List.of(foreignKeys));
+    }
+
+    public List<String> getForeignKeys() {
+        return Collections.unmodifiableList(foreignKeys);
+    }
+
+    // label of a column selected by a join query: table 0 is the entity, table n the target of the n-th foreign key
+    public static String columnLabel(int table, int column) {
+        return "t" + table + "_" + column;
+    }
+}
@@ -1,19 +1,78 @@
 package legacy.query;
 
+import legacy.schema.BaseEntity;
+
 import java.util.ArrayList;
 import java.util.List;
 
 public class FilterSet {
     List<Filter> filters;
+    List<String> columns;
+    List<String> groupBy;
+    List<Sort> sorts;
+    Integer limit;
+    Object[] after;
 
     public FilterSet() {
         this.filters = new ArrayList<>();
+        this.sorts = new ArrayList<>();
     }
 
     public void add(String fieldName, Comparator comparator, Object value) {
         this.filters.add(new Filter(fieldName, comparator, value));
     }
 
+    /**
+     * Only reads the given columns instead of SELECT *: the entities come back partial, the other fields
+     * left null, and update() on them only writes the columns that were read or set since.
+     */
+    public FilterSet select(String... columns) {
+        this.columns = List.of(columns);
+        return this;
+    }
+
+    // grouping columns of BaseEntity.aggregate, which come first in each result row
+    public FilterSet groupBy(String... columns) {
+        this.groupBy = List.of(columns);
+        return this;
+    }
+
+    public FilterSet orderBy(String column) {
+        return orderBy(column, SortDirection.ASC);
+    }
+
+    public FilterSet orderBy(String column, SortDirection direction) {
+        this.sorts.add(new Sort(column, direction));
+        return this;
+    }
+
+    public FilterSet limit(int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive");
+        }
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * Keyset paging: only keeps the rows that come after lastKeyValues in the orderBy order. Unlike
+     * OFFSET, the database seeks straight to them through the index, so deep pages cost the same as the
+     * first one. The id columns are always appended to the orderBy as a tiebreaker, so lastKeyValues holds
+     * one value per orderBy column then one per id column not already ordered on: pass
+     * Page.getNextCursor(). The orderBy columns must be non-null.
+     */
+    public FilterSet after(Object... lastKeyValues) {
+        this.after = lastKeyValues;
+        return this;
+    }
+
+    /**
+     * Builds the SQL of this FilterSet once, for a query that is run many times with different values.
+     */
+    public <T extends BaseEntity> PreparedQuery<T> compile(Class<T> entityClass) {
+        return BaseEntity.prepare(entityClass, this);
+    }
+
     public List<Filter> getFilters() {
         return filters;
     }
@@ -21,4 +80,24 @@ public class FilterSet {
     public void setFilters(List<Filter> filters) {
         this.filters = filters;
     }
+
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    public List<String> getGroupBy() {
+        return groupBy;
+    }
+
+    public List<Sort> getSorts() {
+        return sorts;
+    }
+
+    public Integer getLimit() {
+        return limit;
+    }
+
+    public Object[] getAfter() {
+        return after;
+    }
 }
@@ -0,0 +1,30 @@
+package legacy.query;
+
+import java.util.List;
+
+/**
+ * One page of a keyset-paginated query. The next page is read by passing getNextCursor()
+ * to FilterSet.after on the same FilterSet.
+ */
+public class Page<T> {
+    private final List<T> items;
+    private final Object[] nextCursor;
+
+    public Page(List<T> items, Object[] nextCursor) {
+        this.items = items;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<T> getItems() {
+        return items;
+    }
+
+    public boolean hasNext() {
+        return nextCursor != null;
+    }
+
+    // values of the orderBy columns of the last item, null on the last page
+    public Object[] getNextCursor() {
+        return nextCursor;
+    }
+}
@@ -0,0 +1,84 @@
+package legacy.query;
+
+import legacy.schema.BaseEntity;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * A FilterSet turned into SQL once, see FilterSet.compile. The SQL text only depends on the shape of
+ * the FilterSet (columns, comparators, order, limit), never on the values, so every execution reuses
+ * the statement PostgreSQL has already planned on the connection.
+ * Values can be rebound on each execution, one per filter and in the order they were added.
+ */
+public class PreparedQuery<T extends BaseEntity> {
+    private final Class<T> entityClass;
+    private final String sql;
+    // parameters as compiled: the filter values first, then the keyset and limit values
+    private final List<Object> params;
+    private final List<Comparator> comparators;
+
+    public PreparedQuery(Class<T> entityClass, String sql, List<Object> params, List<Comparator> comparators) {
+        this.entityClass = entityClass;
+        this.sql = sql;
+        this.params = Collections.unmodifiableList(new ArrayList<>(params));
+        this.comparators = Collections.unmodifiableList(new ArrayList<>(comparators));
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public List<T> list() throws Exception {
+        return QueryManager.get_instance().executeReadOnlySelect(entityClass, sql, params.toArray());
+    }
+
+    public List<T> list(Object... values) throws Exception {
+        return QueryManager.get_instance().executeReadOnlySelect(entityClass, sql, bind(values));
+    }
+
+    public Stream<T> stream(Object... values) throws Exception {
+        return QueryManager.get_instance().executeReadOnlySelectStream(entityClass, sql, bind(values));
+    }
+
+    private Object[] bind(Object[] values) {
+        if (values.length != comparators.size()) {
+            throw new IllegalArgumentException("Query expects " + comparators.size() + " filter values, got " + values.length);
+        }
+        Object[] bound = params.toArray();
+        for (int i = 0; i < values.length; i++) {
+            bound[i] = compiledParameter(comparators.get(i), values[i]);
+        }
+        return bound;
+    }
+
+    /**
+     * The value bound for a filter: IN takes a collection or an array and binds it as one SQL array,
+     * matched with "= ANY(?)".
+     */
+    public static Object parameter(Comparator comparator, Object value) {
+        if (comparator != Comparator.IN) {
+            return value;
+        }
+        Object[] values = value instanceof Collection<?> collection ? collection.toArray() : (Object[]) value;
+        if (values == null || values.length == 0) {
+            throw new IllegalArgumentException("IN comparator requires at least one value");
+        }
+        return values;
+    }
+
+    /**
+     * parameter for a compiled query: its IN filters have a single "= ANY(?)" placeholder whatever
+     * the number of values, so their values must be bindable as an array.
+     */
+    public static Object compiledParameter(Comparator comparator, Object value) {
+        Object parameter = parameter(comparator, value);
+        if (comparator == Comparator.IN && !QueryManager.canBindArray((Object[]) parameter)) {
+            throw new IllegalArgumentException("[LEGACY ERROR] IN values of a compiled query must have a type PostgreSQL can bind as an array (numbers, text, uuid, dates and times...)");
+        }
+        return parameter;
+    }
+}
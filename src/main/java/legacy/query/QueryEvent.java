@@ -0,0 +1,79 @@
+package legacy.query;
+
+import legacy.jfr.LegacyQuery;
+
+/**
+ * One statement execution, as seen by QueryListeners. Row count, duration and error are only
+ * known in afterQuery.
+ */
+public class QueryEvent {
+    private final String sql;
+    private final Object[] params;
+    private final int bindCount;
+    private final long poolWaitNanos;
+    private final Class<?> entityClass;
+    private long startNanos;
+    private long durationNanos = -1;
+    private long rowCount = -1;
+    private Throwable error;
+    // JFR event of this statement, when a recording is on
+    LegacyQuery recording;
+
+    QueryEvent(String sql, Object[] params, int bindCount, long poolWaitNanos, Class<?> entityClass) {
+        this.sql = sql;
+        this.params = params;
+        this.bindCount = bindCount;
+        this.poolWaitNanos = poolWaitNanos;
+        this.entityClass = entityClass;
+    }
+
+    void start() {
+        this.startNanos = System.nanoTime();
+    }
+
+    void complete(long rowCount, Throwable error) {
+        this.durationNanos = System.nanoTime() - startNanos;
+        this.rowCount = rowCount;
+        this.error = error;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    // the bound values; for a batch, those of its first row
+    public Object[] getParams() {
+        return params;
+    }
+
+    // entity the rows are mapped to, null for untyped statements
+    public Class<?> getEntityClass() {
+        return entityClass;
+    }
+
+    public int getBindCount() {
+        return bindCount;
+    }
+
+    // time spent waiting for a pooled connection, 0 on a bound connection
+    public long getPoolWaitNanos() {
+        return poolWaitNanos;
+    }
+
+    // rows read, or rows affected by an update or a batch; -1 on failure
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    public Throwable getError() {
+        return error;
+    }
+
+    public boolean isFailed() {
+        return error != null;
+    }
+}
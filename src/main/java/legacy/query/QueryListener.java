@@ -0,0 +1,17 @@
+package legacy.query;
+
+/**
+ * Observes every statement run by QueryManager, see QueryManager.addListener.
+ * Hooks run on the querying thread, inline with the query: keep them short. An exception thrown by a
+ * hook is logged to the "legacy.query" System.Logger and ignored.
+ */
+public interface QueryListener {
+
+    // the connection is acquired and the statement is about to run
+    default void beforeQuery(QueryEvent event) {
+    }
+
+    // the statement completed or failed; for streams, when the stream is closed
+    default void afterQuery(QueryEvent event) {
+    }
+}
@@ -1,89 +1,983 @@
 package legacy.query;
 
+import legacy.jfr.LegacyHydration;
+import legacy.jfr.LegacyQuery;
+import legacy.schema.BaseEntity;
 import legacy.utils.DbConn;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class QueryManager {
 
-    private static QueryManager _instance;
+
+    // connection bound to the current thread by a Session; every query of that thread runs on it
+    private static final ThreadLocal<Connection> boundConnection = new ThreadLocal<>();
+
+    // rows pulled per round trip by the server-side cursor behind executeSelectStream
+    private int fetchSize = 1000;
+
+    // when the current thread last wrote; its reads stay on the primary for readYourWritesMillis afterwards
+    // so that replication lag never hides its own writes
+    private static final ThreadLocal<Long> lastWrite = new ThreadLocal<>();
+    // actions waiting for the transaction of the bound connection to commit, see afterCommit
+    private static final ThreadLocal<List<Runnable>> afterCommitActions = new ThreadLocal<>();
+    private volatile long readYourWritesMillis = 1000;
+
+    // copied on write, read once per statement
+    private static volatile QueryListener[] listeners = new QueryListener[0];
+    private static final System.Logger LISTENER_LOGGER = System.getLogger("legacy.query");
+
+    // async queries run on virtual threads; the semaphore, sized to the pool, queues them in memory
+    // instead of letting them pile up on the pool and fail with connection timeouts
+    private static final ExecutorService asyncExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private static volatile Semaphore asyncPermits;
+
+    // initialized on first use by the class loader, which also makes it safe across threads
+    private static class Holder {
+        static final QueryManager INSTANCE = new QueryManager();
+    }
 
     public static QueryManager get_instance() {
-        if(_instance == null) {
-            _instance = new QueryManager();
-        }
-        return _instance;
+        return Holder.INSTANCE;
     }
 
+    // raw SQL runs on the primary: it may lock (FOR UPDATE) or write (data-modifying CTE)
     public List<RawObject> executeSelect(String sql, Object... params) throws Exception {
+        return select(false, sql, params);
+    }
+
+    /**
+     * executeSelect for statements known to only read: served by a replica when DbConn has replicas,
+     * see acquireReadConnection.
+     */
+    public List<RawObject> executeReadOnlySelect(String sql, Object... params) throws Exception {
+        return select(true, sql, params);
+    }
+
+    private List<RawObject> select(boolean readOnly, String sql, Object[] params) throws Exception {
         List<RawObject> resultList = new ArrayList<>();
 
-        try (Connection conn = DbConn.getConn();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
+        try (ConnectionLease lease = readOnly ? acquireReadConnection() : acquireConnection();
+             PreparedStatement stmt = lease.conn.prepareStatement(sql)) {
 
-            setParameters(stmt, params);
+            QueryEvent event = beforeQuery(lease, sql, params, null);
+            try {
+                setParameters(stmt, params);
 
-            try (ResultSet rs = stmt.executeQuery()) {
-                ResultSetMetaData meta = rs.getMetaData();
-                int columnCount = meta.getColumnCount();
+                try (ResultSet rs = stmt.executeQuery()) {
+                    ResultSetMetaData meta = rs.getMetaData();
+                    int columnCount = meta.getColumnCount();
 
-                while (rs.next()) {
-                    Map<String, Object> row = new HashMap<>();
-                    for (int i = 1; i <= columnCount; i++) {
-                        row.put(meta.getColumnLabel(i), rs.getObject(i));
+                    while (rs.next()) {
+                        Map<String, Object> row = new HashMap<>();
+                        for (int i = 1; i <= columnCount; i++) {
+                            row.put(meta.getColumnLabel(i), rs.getObject(i));
+                        }
+                        resultList.add(new RawObject(row));
                     }
-                    resultList.add(new RawObject(row));
                 }
+            } catch (Exception e) {
+                afterQuery(event, -1, e);
+                throw e;
             }
+            afterQuery(event, resultList.size(), null);
         }
 
         return resultList;
     }
 
+    public <T extends BaseEntity> List<T> executeSelect(Class<T> entityClass, String sql, Object... params) throws Exception {
+        return executeSelect(entityClass, (Fetch) null, sql, params);
+    }
+
+    /**
+     * Typed select whose rows also carry the foreign keys joined by fetch, labelled with Fetch.columnLabel.
+     */
+    public <T extends BaseEntity> List<T> executeSelect(Class<T> entityClass, Fetch fetch, String sql, Object... params) throws Exception {
+        return select(false, entityClass, fetch, sql, params);
+    }
+
+    public <T extends BaseEntity> List<T> executeReadOnlySelect(Class<T> entityClass, String sql, Object... params) throws Exception {
+        return select(true, entityClass, null, sql, params);
+    }
+
+    public <T extends BaseEntity> List<T> executeReadOnlySelect(Class<T> entityClass, Fetch fetch, String sql, Object... params) throws Exception {
+        return select(true, entityClass, fetch, sql, params);
+    }
+
+    private <T extends BaseEntity> List<T> select(boolean readOnly, Class<T> entityClass, Fetch fetch, String sql, Object[] params) throws Exception {
+        List<T> resultList = new ArrayList<>();
+
+        try (ConnectionLease lease = readOnly ? acquireReadConnection() : acquireConnection();
+             PreparedStatement stmt = lease.conn.prepareStatement(sql)) {
+
+            QueryEvent event = beforeQuery(lease, sql, params, entityClass);
+            try {
+                setParameters(stmt, params);
+
+                try (ResultSet rs = stmt.executeQuery()) {
+                    LegacyHydration hydration = new LegacyHydration();
+                    hydration.begin();
+                    EntityMapper<T> mapper = new EntityMapper<>(entityClass, rs.getMetaData(), fetch);
+                    while (rs.next()) {
+                        resultList.add(mapper.map(rs));
+                    }
+                    hydration.commit(entityClass, resultList.size());
+                }
+            } catch (Exception e) {
+                afterQuery(event, -1, e);
+                throw e;
+            }
+            afterQuery(event, resultList.size(), null);
+        }
+
+        return resultList;
+    }
+
+    /**
+     * Select whose columns, in order, are the components of a projection record.
+     */
+    public <R extends Record> List<R> executeSelectRecords(Class<R> recordClass, String sql, Object... params) throws Exception {
+        return selectRecords(false, recordClass, sql, params);
+    }
+
+    public <R extends Record> List<R> executeReadOnlySelectRecords(Class<R> recordClass, String sql, Object... params) throws Exception {
+        return selectRecords(true, recordClass, sql, params);
+    }
+
+    private <R extends Record> List<R> selectRecords(boolean readOnly, Class<R> recordClass, String sql, Object[] params) throws Exception {
+        List<R> resultList = new ArrayList<>();
+
+        try (ConnectionLease lease = readOnly ? acquireReadConnection() : acquireConnection();
+             PreparedStatement stmt = lease.conn.prepareStatement(sql)) {
+
+            QueryEvent event = beforeQuery(lease, sql, params, null);
+            try {
+                setParameters(stmt, params);
+
+                try (ResultSet rs = stmt.executeQuery()) {
+                    RecordMapper<R> mapper = new RecordMapper<>(recordClass, rs.getMetaData());
+                    while (rs.next()) {
+                        resultList.add(mapper.map(rs));
+                    }
+                }
+            } catch (Exception e) {
+                afterQuery(event, -1, e);
+                throw e;
+            }
+            afterQuery(event, resultList.size(), null);
+        }
+
+        return resultList;
+    }
+
+    /**
+     * Runs several INSERT ... RETURNING statements on one connection and in one transaction,
+     * returning every inserted row in statement order.
+     */
+    public <T extends BaseEntity> List<T> executeInsertReturning(Class<T> entityClass, List<String> sqls, List<Object[]> paramsList) throws Exception {
+        List<T> resultList = new ArrayList<>();
+
+        try (ConnectionLease lease = acquireConnection()) {
+            Connection conn = lease.conn;
+            lease.begin();
+            try {
+                for (int i = 0; i < sqls.size(); i++) {
+                    try (PreparedStatement stmt = conn.prepareStatement(sqls.get(i))) {
+                        QueryEvent event = beforeQuery(lease, sqls.get(i), paramsList.get(i), entityClass);
+                        int before = resultList.size();
+                        try {
+                            setParameters(stmt, paramsList.get(i));
+
+                            try (ResultSet rs = stmt.executeQuery()) {
+                                EntityMapper<T> mapper = new EntityMapper<>(entityClass, rs.getMetaData());
+                                while (rs.next()) {
+                                    resultList.add(mapper.map(rs));
+                                }
+                            }
+                        } catch (Exception e) {
+                            afterQuery(event, -1, e);
+                            throw e;
+                        }
+                        afterQuery(event, resultList.size() - before, null);
+                    }
+                }
+                lease.commit();
+            } catch (Exception e) {
+                lease.rollback();
+                throw e;
+            } finally {
+                lease.end();
+            }
+        }
+        recordWrite();
+
+        return resultList;
+    }
+
+    /**
+     * Runs each statement as a JDBC batch over its parameter rows, all on one connection and in one
+     * transaction. Returns the update counts of each batch, in the order of the statements.
+     */
+    public List<int[]> executeBatch(List<String> sqls, List<List<Object[]>> paramsList) throws Exception {
+        List<int[]> results = new ArrayList<>();
+
+        try (ConnectionLease lease = acquireConnection()) {
+            Connection conn = lease.conn;
+            lease.begin();
+            try {
+                for (int i = 0; i < sqls.size(); i++) {
+                    try (PreparedStatement stmt = conn.prepareStatement(sqls.get(i))) {
+                        List<Object[]> rows = paramsList.get(i);
+                        QueryEvent event = beforeQuery(lease, sqls.get(i), rows.isEmpty() ? new Object[0] : rows.get(0), rows.isEmpty() ? 0 : rows.size() * rows.get(0).length, null);
+                        int[] counts;
+                        try {
+                            for (Object[] params : rows) {
+                                setParameters(stmt, params);
+                                stmt.addBatch();
+                            }
+                            counts = stmt.executeBatch();
+                        } catch (Exception e) {
+                            afterQuery(event, -1, e);
+                            throw e;
+                        }
+                        afterQuery(event, affectedRows(counts), null);
+                        results.add(counts);
+                    }
+                }
+                lease.commit();
+            } catch (Exception e) {
+                lease.rollback();
+                throw e;
+            } finally {
+                lease.end();
+            }
+        }
+        recordWrite();
+
+        return results;
+    }
+
+    /**
+     * Lazy variant of executeSelect backed by a PostgreSQL server-side cursor.
+     * The connection stays checked out (with autocommit off) until the stream is closed,
+     * so always consume it inside a try-with-resources.
+     */
+    public Stream<RawObject> executeSelectStream(String sql, Object... params) throws Exception {
+        return openCursor(false, null, sql, params, rs -> {
+            ResultSetMetaData meta = rs.getMetaData();
+            int columnCount = meta.getColumnCount();
+            String[] labels = new String[columnCount];
+            for (int i = 1; i <= columnCount; i++) {
+                labels[i - 1] = meta.getColumnLabel(i);
+            }
+            return row -> {
+                Map<String, Object> data = new HashMap<>();
+                for (int i = 1; i <= columnCount; i++) {
+                    data.put(labels[i - 1], row.getObject(i));
+                }
+                return new RawObject(data);
+            };
+        });
+    }
+
+    public <T extends BaseEntity> Stream<T> executeSelectStream(Class<T> entityClass, String sql, Object... params) throws Exception {
+        return openCursor(false, entityClass, sql, params, rs -> new EntityMapper<>(entityClass, rs.getMetaData())::map);
+    }
+
+    public <T extends BaseEntity> Stream<T> executeReadOnlySelectStream(Class<T> entityClass, String sql, Object... params) throws Exception {
+        return openCursor(true, entityClass, sql, params, rs -> new EntityMapper<>(entityClass, rs.getMetaData())::map);
+    }
+
+    /**
+     * Binds a connection to the current thread: until unbindConnection() is called, every query issued
+     * from this thread runs on it, inside whatever transaction the owner of the connection manages.
+     */
+    public void bindConnection(Connection conn) {
+        if (boundConnection.get() != null && boundConnection.get() != conn) {
+            throw new IllegalStateException("[LEGACY ERROR] Another connection is already bound to the current thread");
+        }
+        boundConnection.set(conn);
+    }
+
+    /**
+     * Runs work in a transaction on one connection, bound to the current thread so that every query
+     * it issues (BaseEntity operations included) reuses it. Commits when work returns and rolls back
+     * when it throws. Called inside another transaction or a Session, it joins it through a savepoint:
+     * a failure only undoes its own statements, and the outer owner still decides on the commit.
+     */
+    public <R> R inTransaction(Callable<R> work) throws Exception {
+        Connection bound = boundConnection.get();
+        if (bound != null && !bound.getAutoCommit()) {
+            Savepoint savepoint = bound.setSavepoint();
+            R result;
+            try {
+                result = work.call();
+            } catch (Exception | Error e) {
+                try {
+                    bound.rollback(savepoint);
+                } catch (SQLException rollbackError) {
+                    e.addSuppressed(rollbackError);
+                }
+                throw e;
+            }
+            bound.releaseSavepoint(savepoint);
+            return result;
+        }
+
+        Connection conn = bound != null ? bound : DbConn.getConn();
+        boolean autoCommit = conn.getAutoCommit();
+        try {
+            conn.setAutoCommit(false);
+            if (bound == null) {
+                bindConnection(conn);
+            }
+            R result;
+            try {
+                result = work.call();
+                conn.commit();
+                recordWrite();
+            } catch (Exception | Error e) {
+                discardAfterCommit();
+                try {
+                    conn.rollback();
+                } catch (SQLException rollbackError) {
+                    e.addSuppressed(rollbackError);
+                }
+                throw e;
+            }
+            runAfterCommit();
+            return result;
+        } finally {
+            if (bound == null) {
+                unbindConnection();
+            }
+            try {
+                conn.setAutoCommit(autoCommit);
+            } finally {
+                if (bound == null) {
+                    conn.close();
+                }
+            }
+        }
+    }
+
+    public void unbindConnection() {
+        boundConnection.remove();
+        afterCommitActions.remove();
+    }
+
+    /**
+     * Runs action once the transaction of the connection bound to this thread has committed, or right
+     * away when no transaction is open. BaseEntity defers its cache invalidations this way, so that
+     * other threads cannot cache the old row again before the new one is visible.
+     */
+    public void afterCommit(Runnable action) throws SQLException {
+        Connection bound = boundConnection.get();
+        if (bound == null || bound.getAutoCommit()) {
+            action.run();
+            return;
+        }
+        List<Runnable> actions = afterCommitActions.get();
+        if (actions == null) {
+            actions = new ArrayList<>();
+            afterCommitActions.set(actions);
+        }
+        actions.add(action);
+    }
+
+    // called by the owner of the bound connection (inTransaction, Session) once it committed
+    public void runAfterCommit() {
+        List<Runnable> actions = afterCommitActions.get();
+        afterCommitActions.remove();
+        if (actions != null) {
+            actions.forEach(Runnable::run);
+        }
+    }
+
+    // called by the owner of the bound connection when it rolls back
+    public void discardAfterCommit() {
+        afterCommitActions.remove();
+    }
+
+    public Connection getBoundConnection() {
+        return boundConnection.get();
+    }
+
+    /**
+     * Keeps the reads of the current thread on the primary for the read-your-writes window.
+     * Called after every write; Session and BulkLoader call it after committing.
+     */
+    public void recordWrite() {
+        lastWrite.set(System.nanoTime());
+    }
+
+    /**
+     * Wraps work to run on another thread with the read-your-writes window of the calling thread,
+     * so that its reads still go to the primary after a recent write.
+     */
+    public <R> Callable<R> carryWrites(Callable<R> work) {
+        Long callerLastWrite = lastWrite.get();
+        if (callerLastWrite == null) {
+            return work;
+        }
+        return () -> {
+            Long previous = lastWrite.get();
+            lastWrite.set(callerLastWrite);
+            try {
+                return work.call();
+            } finally {
+                if (previous == null) {
+                    lastWrite.remove();
+                } else {
+                    lastWrite.set(previous);
+                }
+            }
+        };
+    }
+
+    // whether a select issued now by this thread would be served by a replica
+    public boolean isReadingFromReplica() {
+        return boundConnection.get() == null && !isInWriteWindow() && !DbConn.getReplicas().isEmpty();
+    }
+
+    private boolean isInWriteWindow() {
+        Long last = lastWrite.get();
+        return last != null && System.nanoTime() - last < TimeUnit.MILLISECONDS.toNanos(readYourWritesMillis);
+    }
+
+    public long getReadYourWritesMillis() {
+        return readYourWritesMillis;
+    }
+
+    public void setReadYourWritesMillis(long readYourWritesMillis) {
+        if (readYourWritesMillis < 0) {
+            throw new IllegalArgumentException("Read-your-writes window must not be negative");
+        }
+        this.readYourWritesMillis = readYourWritesMillis;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public void setFetchSize(int fetchSize) {
+        if (fetchSize <= 0) {
+            throw new IllegalArgumentException("Fetch size must be positive");
+        }
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Runs work on a virtual thread once one of the pool-sized permits is free.
+     * The work runs outside the calling thread, so it never sees a connection bound by
+     * inTransaction or a Session and always borrows its own from the pool.
+     */
+    public <R> CompletableFuture<R> supplyAsync(Callable<R> work) {
+        Callable<R> task = carryWrites(work);
+        return CompletableFuture.supplyAsync(() -> {
+            Semaphore permits = asyncPermits();
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+            try {
+                return task.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            } finally {
+                permits.release();
+            }
+        }, asyncExecutor);
+    }
+
+    public CompletableFuture<List<RawObject>> executeSelectAsync(String sql, Object... params) {
+        return supplyAsync(() -> executeSelect(sql, params));
+    }
+
+    public <T extends BaseEntity> CompletableFuture<List<T>> executeSelectAsync(Class<T> entityClass, String sql, Object... params) {
+        return supplyAsync(() -> executeSelect(entityClass, sql, params));
+    }
+
+    public CompletableFuture<Integer> executeUpdateAsync(String sql, Object... params) {
+        return supplyAsync(() -> executeUpdate(sql, params));
+    }
+
+    private static Semaphore asyncPermits() {
+        Semaphore permits = asyncPermits;
+        if (permits == null) {
+            synchronized (QueryManager.class) {
+                permits = asyncPermits;
+                if (permits == null) {
+                    permits = new Semaphore(DbConn.getMaximumPoolSize(), true);
+                    asyncPermits = permits;
+                }
+            }
+        }
+        return permits;
+    }
+
     public int executeUpdate(String sql, Object... params) throws Exception {
-        try (Connection conn = DbConn.getConn();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
+        try (ConnectionLease lease = acquireConnection();
+             PreparedStatement stmt = lease.conn.prepareStatement(sql)) {
 
-            setParameters(stmt, params);
-            return stmt.executeUpdate();
+            QueryEvent event = beforeQuery(lease, sql, params, null);
+            int count;
+            try {
+                setParameters(stmt, params);
+                count = stmt.executeUpdate();
+            } catch (Exception e) {
+                afterQuery(event, -1, e);
+                throw e;
+            }
+            afterQuery(event, count, null);
+            recordWrite();
+            return count;
         }
     }
 
     public RawObject executeInsertReturning(String sql, Object... params) throws Exception {
-        try (Connection conn = DbConn.getConn();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
+        try (ConnectionLease lease = acquireConnection();
+             PreparedStatement stmt = lease.conn.prepareStatement(sql)) {
 
-            setParameters(stmt, params);
+            QueryEvent event = beforeQuery(lease, sql, params, null);
+            RawObject result = null;
+            try {
+                setParameters(stmt, params);
 
-            try (ResultSet rs = stmt.executeQuery()) {
-                if (rs.next()) {
-                    ResultSetMetaData meta = rs.getMetaData();
-                    int columnCount = meta.getColumnCount();
+                try (ResultSet rs = stmt.executeQuery()) {
+                    recordWrite();
+                    if (rs.next()) {
+                        ResultSetMetaData meta = rs.getMetaData();
+                        int columnCount = meta.getColumnCount();
 
-                    Map<String, Object> row = new HashMap<>();
-                    for (int i = 1; i <= columnCount; i++) {
-                        System.out.println("[DEBUG LEGACY EXECUTE INSERT] ");
-                        System.out.println("Column: "+meta.getColumnLabel(i));
-                        row.put(meta.getColumnLabel(i), rs.getObject(i));
+                        Map<String, Object> row = new HashMap<>();
+                        for (int i = 1; i <= columnCount; i++) {
+                            row.put(meta.getColumnLabel(i), rs.getObject(i));
+                        }
+                        result = new RawObject(row);
                     }
+                }
+            } catch (Exception e) {
+                afterQuery(event, -1, e);
+                throw e;
+            }
+            afterQuery(event, result == null ? 0 : 1, null);
+            return result;
+        }
+    }
+
+
+    private <R> Stream<R> openCursor(boolean readOnly, Class<?> entityClass, String sql, Object[] params, RowReaderFactory<R> readerFactory) throws Exception {
+        ConnectionLease lease = readOnly ? acquireReadConnection() : acquireConnection();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        QueryEvent event = null;
+        try {
+            event = beforeQuery(lease, sql, params, entityClass);
+            // the PostgreSQL driver only honours the fetch size outside autocommit
+            lease.begin();
+            stmt = lease.conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            stmt.setFetchSize(fetchSize);
+            setParameters(stmt, params);
+            rs = stmt.executeQuery();
+
+            Cursor<R> cursor = new Cursor<>(lease, stmt, rs, readerFactory.create(rs), event);
+            return StreamSupport.stream(cursor, false).onClose(cursor::close);
+        } catch (Exception e) {
+            afterQuery(event, -1, e);
+            closeCursor(lease, stmt, rs, e);
+            throw e;
+        }
+    }
+
+    private static void closeCursor(ConnectionLease lease, Statement stmt, ResultSet rs, Exception failure) {
+        Exception error = failure;
+        AutoCloseable[] resources = { rs, stmt };
+        for (AutoCloseable resource : resources) {
+            if (resource == null) {
+                continue;
+            }
+            try {
+                resource.close();
+            } catch (Exception e) {
+                error = suppress(error, e);
+            }
+        }
+        try {
+            // nothing was written, committing just ends the transaction that held the cursor
+            lease.commit();
+            lease.end();
+        } catch (Exception e) {
+            error = suppress(error, e);
+        }
+        try {
+            lease.close();
+        } catch (Exception e) {
+            error = suppress(error, e);
+        }
+        if (error != null && error != failure) {
+            throw new RuntimeException("[LEGACY ERROR] Error while closing query stream: " + error.getMessage(), error);
+        }
+    }
 
-                    return new RawObject(row);
+    private static Exception suppress(Exception error, Exception e) {
+        if (error == null) {
+            return e;
+        }
+        error.addSuppressed(e);
+        return error;
+    }
+
+    @FunctionalInterface
+    private interface RowReader<R> {
+        R read(ResultSet rs) throws Exception;
+    }
+
+    @FunctionalInterface
+    private interface RowReaderFactory<R> {
+        RowReader<R> create(ResultSet rs) throws SQLException;
+    }
+
+    private static class Cursor<R> extends Spliterators.AbstractSpliterator<R> {
+        private final ConnectionLease lease;
+        private final Statement stmt;
+        private final ResultSet rs;
+        private final RowReader<R> reader;
+        private final QueryEvent event;
+        private long rows;
+        private Exception failure;
+        private boolean closed;
+
+        Cursor(ConnectionLease lease, Statement stmt, ResultSet rs, RowReader<R> reader, QueryEvent event) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.lease = lease;
+            this.stmt = stmt;
+            this.rs = rs;
+            this.reader = reader;
+            this.event = event;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super R> action) {
+            if (closed) {
+                return false;
+            }
+            try {
+                if (!rs.next()) {
+                    close();
+                    return false;
                 }
+                R row = reader.read(rs);
+                rows++;
+                action.accept(row);
+                return true;
+            } catch (RuntimeException e) {
+                failure = e;
+                throw e;
+            } catch (Exception e) {
+                failure = e;
+                throw new RuntimeException("[LEGACY ERROR] Error while reading query stream: " + e.getMessage(), e);
             }
         }
 
-        return null;
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            afterQuery(event, failure == null ? rows : -1, failure);
+            closeCursor(lease, stmt, rs, null);
+        }
+    }
+
+    // read-only selects go to a replica (DbConn.getReadConn) unless they must see this thread's writes:
+    // inside a transaction or a Session, or within the read-your-writes window after a write
+    private ConnectionLease acquireReadConnection() throws SQLException {
+        Connection bound = boundConnection.get();
+        if (bound != null) {
+            return new ConnectionLease(bound, false);
+        }
+        long start = isInstrumented() ? System.nanoTime() : 0;
+        if (isInWriteWindow()) {
+            return new ConnectionLease(DbConn.getConn(), true, start);
+        }
+        return new ConnectionLease(DbConn.getReadConn(), true, start);
+    }
+
+    private ConnectionLease acquireConnection() throws SQLException {
+        Connection bound = boundConnection.get();
+        if (bound != null) {
+            return new ConnectionLease(bound, false);
+        }
+        long start = isInstrumented() ? System.nanoTime() : 0;
+        return new ConnectionLease(DbConn.getConn(), true, start);
+    }
+
+    /**
+     * Registers a listener called around every statement. Without listeners, the instrumentation
+     * costs one volatile read per statement.
+     */
+    public static synchronized void addListener(QueryListener listener) {
+        QueryListener[] current = listeners;
+        QueryListener[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = listener;
+        listeners = updated;
+    }
+
+    public static synchronized void removeListener(QueryListener listener) {
+        List<QueryListener> updated = new ArrayList<>(Arrays.asList(listeners));
+        updated.remove(listener);
+        listeners = updated.toArray(new QueryListener[0]);
+    }
+
+    private static QueryEvent beforeQuery(ConnectionLease lease, String sql, Object[] params, Class<?> entityClass) {
+        return beforeQuery(lease, sql, params, params == null ? 0 : params.length, entityClass);
+    }
+
+    // listeners registered, or a JFR recording with legacy.Query enabled
+    private static boolean isInstrumented() {
+        return listeners.length > 0 || LegacyQuery.isRecording();
+    }
+
+    // null when nobody listens, so that the rest of the statement skips instrumentation
+    private static QueryEvent beforeQuery(ConnectionLease lease, String sql, Object[] params, int bindCount, Class<?> entityClass) {
+        QueryListener[] current = listeners;
+        boolean recording = LegacyQuery.isRecording();
+        if (current.length == 0 && !recording) {
+            return null;
+        }
+        QueryEvent event = new QueryEvent(sql, params, bindCount, lease.takeWaitNanos(), entityClass);
+        for (QueryListener listener : current) {
+            try {
+                listener.beforeQuery(event);
+            } catch (RuntimeException e) {
+                listenerFailed(listener, e);
+            }
+        }
+        if (recording) {
+            event.recording = new LegacyQuery();
+            event.recording.begin();
+        }
+        event.start();
+        return event;
+    }
+
+    private static void afterQuery(QueryEvent event, long rowCount, Throwable error) {
+        if (event == null) {
+            return;
+        }
+        event.complete(rowCount, error);
+        if (event.recording != null) {
+            event.recording.commit(event.getSql(), event.getEntityClass(), event.getBindCount(),
+                    event.getPoolWaitNanos(), rowCount, error != null);
+        }
+        for (QueryListener listener : listeners) {
+            try {
+                listener.afterQuery(event);
+            } catch (RuntimeException e) {
+                listenerFailed(listener, e);
+            }
+        }
     }
 
+    // a failing listener must neither fail the statement nor stop the other listeners
+    private static void listenerFailed(QueryListener listener, RuntimeException e) {
+        LISTENER_LOGGER.log(System.Logger.Level.WARNING, "QueryListener " + listener.getClass().getName() + " failed", e);
+    }
+
+    private static long affectedRows(int[] counts) {
+        long total = 0;
+        for (int count : counts) {
+            // SUCCESS_NO_INFO (-2) carries no count
+            if (count > 0) {
+                total += count;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * A connection borrowed for one operation. Pooled connections are owned: the lease manages their
+     * transaction and returns them to the pool. Bound connections belong to a Session, which manages both.
+     */
+    private static class ConnectionLease implements AutoCloseable {
+        final Connection conn;
+        private final boolean owned;
+        private boolean autoCommit;
+        // time spent waiting for the pool, reported by the first statement run on the lease
+        private long waitNanos;
+
+        ConnectionLease(Connection conn, boolean owned) {
+            this.conn = conn;
+            this.owned = owned;
+        }
+
+        ConnectionLease(Connection conn, boolean owned, long acquireStart) {
+            this(conn, owned);
+            this.waitNanos = acquireStart == 0 ? 0 : System.nanoTime() - acquireStart;
+        }
+
+        long takeWaitNanos() {
+            long wait = waitNanos;
+            waitNanos = 0;
+            return wait;
+        }
+
+        void begin() throws SQLException {
+            if (owned) {
+                autoCommit = conn.getAutoCommit();
+                conn.setAutoCommit(false);
+            }
+        }
+
+        void commit() throws SQLException {
+            if (owned) {
+                conn.commit();
+            }
+        }
+
+        void rollback() throws SQLException {
+            if (owned) {
+                conn.rollback();
+            }
+        }
+
+        void end() throws SQLException {
+            if (owned) {
+                conn.setAutoCommit(autoCommit);
+            }
+        }
+
+        @Override
+        public void close() throws SQLException {
+            if (owned) {
+                conn.close();
+            }
+        }
+    }
 
     private void setParameters(PreparedStatement stmt, Object... params) throws SQLException {
         if (params != null) {
             for (int i = 0; i < params.length; i++) {
-                stmt.setObject(i + 1, params[i]);
+                if (params[i] instanceof Object[] array) {
+                    // bound as a SQL array, e.g. for "column = ANY(?)"
+                    String type = arrayType(array);
+                    if (type == null) {
+                        throw new IllegalArgumentException("[LEGACY ERROR] Parameter " + (i + 1) + " cannot be bound as a SQL array, expand it into one placeholder per element");
+                    }
+                    stmt.setArray(i + 1, stmt.getConnection().createArrayOf(type, arrayElements(array)));
+                } else {
+                    stmt.setObject(i + 1, params[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether values can be bound as one SQL array parameter: every element has a type with a known
+     * PostgreSQL array type. Other values must be expanded into one placeholder each, "IN (?, ?)".
+     */
+    public static boolean canBindArray(Object[] values) {
+        return arrayType(values) != null;
+    }
+
+    // null when the elements have no common known type (or are all null)
+    private static String arrayType(Object[] array) {
+        String type = null;
+        for (Object element : array) {
+            if (element == null) {
+                continue;
+            }
+            String elementType = elementType(element);
+            if (elementType == null || (type != null && !type.equals(elementType))) {
+                return null;
+            }
+            type = elementType;
+        }
+        return type;
+    }
+
+    private static String elementType(Object element) {
+        if (element instanceof Long || element instanceof Integer || element instanceof Short || element instanceof Byte) {
+            // int8 accepts every integral id and compares with int4/int2 columns without a cast
+            return "int8";
+        }
+        if (element instanceof java.math.BigDecimal || element instanceof java.math.BigInteger) {
+            return "numeric";
+        }
+        if (element instanceof Double || element instanceof Float) {
+            return "float8";
+        }
+        if (element instanceof Boolean) {
+            return "bool";
+        }
+        if (element instanceof java.util.UUID) {
+            return "uuid";
+        }
+        if (element instanceof String || element instanceof Character || element instanceof Enum<?>) {
+            return "text";
+        }
+        if (element instanceof java.sql.Date || element instanceof java.time.LocalDate) {
+            return "date";
+        }
+        if (element instanceof java.sql.Time || element instanceof java.time.LocalTime) {
+            return "time";
+        }
+        if (element instanceof java.util.Date || element instanceof java.time.LocalDateTime) {
+            return "timestamp";
+        }
+        if (element instanceof java.time.OffsetDateTime || element instanceof java.time.ZonedDateTime || element instanceof java.time.Instant) {
+            return "timestamptz";
+        }
+        return null;
+    }
+
+    // the driver sends array elements as text: write the temporal ones in a form PostgreSQL parses
+    private static Object[] arrayElements(Object[] array) {
+        Object[] elements = array;
+        for (int i = 0; i < array.length; i++) {
+            Object element = array[i];
+            Object converted = element;
+            if (element instanceof Enum<?> e) {
+                converted = e.name();
+            } else if (element instanceof java.util.Date date && !(element instanceof java.sql.Date)
+                    && !(element instanceof java.sql.Time) && !(element instanceof Timestamp)) {
+                converted = new Timestamp(date.getTime()).toString();
+            } else if (element instanceof java.time.Instant instant) {
+                converted = instant.atOffset(java.time.ZoneOffset.UTC).format(java.time.format.DateTimeFormatter.ISO_OFFSET_DATE_TIME);
+            } else if (element instanceof java.time.ZonedDateTime zoned) {
+                converted = zoned.toOffsetDateTime().format(java.time.format.DateTimeFormatter.ISO_OFFSET_DATE_TIME);
+            } else if (element instanceof java.time.OffsetDateTime offset) {
+                converted = offset.format(java.time.format.DateTimeFormatter.ISO_OFFSET_DATE_TIME);
+            }
+            if (converted != element) {
+                if (elements == array) {
+                    elements = array.clone();
+                }
+                elements[i] = converted;
             }
         }
+        return elements;
     }
 }
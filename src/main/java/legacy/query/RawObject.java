@@ -1,11 +1,10 @@
 package legacy.query;
 
-import legacy.annotations.Column;
+import legacy.jfr.LegacyHydration;
 import legacy.schema.BaseEntity;
+import legacy.schema.ColumnData;
+import legacy.schema.EntityMetadata;
 
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.time.Instant;
@@ -31,43 +30,42 @@ public class RawObject {
     }
 
     public <T extends BaseEntity> T toEntity(Class<T> entityClass) throws Exception {
-        Constructor<T> ctor = entityClass.getConstructor();
-        T instance = ctor.newInstance();
+        LegacyHydration hydration = new LegacyHydration();
+        hydration.begin();
+        T instance = hydrate(entityClass);
+        hydration.commit(entityClass, 1);
+        return instance;
+    }
 
-        for (Field field : entityClass.getDeclaredFields()) {
-            Column column = field.getAnnotation(Column.class);
-            if (column == null) {
-                continue;
-            }
+    private <T extends BaseEntity> T hydrate(Class<T> entityClass) throws Exception {
+        EntityMetadata metadata = EntityMetadata.of(entityClass);
+        T instance = entityClass.cast(metadata.newInstance());
 
-            String columnName = column.name().isEmpty() ? field.getName() : column.name();
+        for (ColumnData column : metadata.getColumns()) {
+            String columnName = column.getNameFromDb();
             if (!data.containsKey(columnName)) {
                 continue;
             }
 
-            Method setter = null;
-            try {
-                setter = entityClass.getMethod("set" + capitalize(field.getName()), field.getType());
-            } catch(NoSuchMethodException e) {
-                throw new Exception(
-                        entityClass.getName()+" BaseEntity setter 'set"+capitalize(field.getName())+"' not found, please review your BaseEntity class to match the setter conventions of Legacy ORM");
-            }
-            Object convertedValue = convertValue(data.get(columnName), field.getType());
-            setter.invoke(instance, convertedValue);
+            Object convertedValue = convertValue(data.get(columnName), column.getType());
+            column.hydrate(instance, convertedValue);
         }
 
         return instance;
     }
 
     public static <T extends BaseEntity> List<T> mapRowsToEntities(List<RawObject> rows, Class<T> entityClass) throws Exception {
+        LegacyHydration hydration = new LegacyHydration();
+        hydration.begin();
         List<T> entities = new ArrayList<>();
         for (RawObject row : rows) {
-            entities.add(row.toEntity(entityClass));
+            entities.add(row.hydrate(entityClass));
         }
+        hydration.commit(entityClass, entities.size());
         return entities;
     }
 
-    private Object convertValue(Object value, Class<?> targetType) {
+    static Object convertValue(Object value, Class<?> targetType) {
         if (value == null) {
             return null;
         }
@@ -104,7 +102,7 @@ public class RawObject {
         return value;
     }
 
-    private Object convertNumber(Number number, Class<?> targetType) {
+    private static Object convertNumber(Number number, Class<?> targetType) {
         if (targetType == Long.class || targetType == long.class) {
             return number.longValue();
         }
@@ -132,7 +130,7 @@ public class RawObject {
         return number;
     }
 
-    private boolean isDateLike(Class<?> targetType) {
+    private static boolean isDateLike(Class<?> targetType) {
         return targetType == Date.class
             || targetType == java.sql.Date.class
             || targetType == java.sql.Time.class
@@ -144,7 +142,7 @@ public class RawObject {
             || targetType == ZonedDateTime.class;
     }
 
-    private Object convertTemporal(Object value, Class<?> targetType) {
+    private static Object convertTemporal(Object value, Class<?> targetType) {
         Instant instant = null;
 
         if (value instanceof java.sql.Timestamp) {
@@ -204,11 +202,4 @@ public class RawObject {
 
         return value;
     }
-
-    private String capitalize(String str) {
-        if (str == null || str.isEmpty()) {
-            return str;
-        }
-        return str.substring(0, 1).toUpperCase() + str.substring(1);
-    }
 }
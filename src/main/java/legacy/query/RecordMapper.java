@@ -0,0 +1,51 @@
+package legacy.query;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.RecordComponent;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * Maps rows into a projection record through its canonical constructor.
+ * Columns are matched by position: the query selects one column per record component, in order.
+ */
+public class RecordMapper<R extends Record> {
+    private final Class<?>[] types;
+    private final MethodHandle constructor;
+
+    public RecordMapper(Class<R> recordClass, ResultSetMetaData meta) throws SQLException {
+        RecordComponent[] components = recordClass.getRecordComponents();
+        if (meta.getColumnCount() != components.length) {
+            throw new IllegalArgumentException("Projection " + recordClass.getSimpleName() + " has " + components.length + " components but the query selects " + meta.getColumnCount() + " columns");
+        }
+        this.types = new Class<?>[components.length];
+        for (int i = 0; i < components.length; i++) {
+            types[i] = components[i].getType();
+        }
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(recordClass, MethodHandles.lookup());
+            this.constructor = lookup.findConstructor(recordClass, MethodType.methodType(void.class, types))
+                    .asSpreader(Object[].class, types.length);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("[LEGACY ERROR] Unable to access the canonical constructor of " + recordClass.getName(), e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public R map(ResultSet rs) throws Exception {
+        Object[] values = new Object[types.length];
+        for (int i = 0; i < types.length; i++) {
+            values[i] = RawObject.convertValue(rs.getObject(i + 1), types[i]);
+        }
+        try {
+            return (R) constructor.invoke(values);
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("[LEGACY ERROR] Unable to build projection: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package legacy.query;
+
+public class Sort {
+    String column;
+    SortDirection direction;
+
+    public Sort(String column, SortDirection direction) {
+        this.column = column;
+        this.direction = direction;
+    }
+
+    public String getColumn() {
+        return column;
+    }
+
+    public SortDirection getDirection() {
+        return direction;
+    }
+}
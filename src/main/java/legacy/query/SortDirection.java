@@ -0,0 +1,6 @@
+package legacy.query;
+
+public enum SortDirection {
+    ASC,
+    DESC
+}
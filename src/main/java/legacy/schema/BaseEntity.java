@@ -1,279 +1,201 @@
 package legacy.schema;
 
-import legacy.annotations.*;
+import legacy.annotations.Generated;
+import legacy.jfr.LegacyForeignKeyMount;
+import legacy.jfr.LegacyGeneratedValue;
+import legacy.query.Agg;
+import legacy.query.Fetch;
 import legacy.query.Filter;
 import legacy.query.FilterSet;
+import legacy.query.Page;
+import legacy.query.PreparedQuery;
 import legacy.query.QueryManager;
 import legacy.query.RawObject;
+import legacy.query.Sort;
+import legacy.query.SortDirection;
 import legacy.strategy.GeneratedAfterPersistence;
 import legacy.strategy.Strategy;
+import legacy.utils.DbConn;
 
+import java.io.Serializable;
 import java.lang.reflect.Field;
+import java.lang.reflect.RecordComponent;
+import java.sql.Statement;
 import java.util.*;
-import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.lang.reflect.InvocationTargetException;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class BaseEntity {
 
+    // PostgreSQL's wire protocol caps a single statement at 65535 bind parameters
+    static final int MAX_BIND_PARAMETERS = 65535;
+
+    // marks columns of loadedValues that were not part of the row the entity was loaded from
+    private static final Object NOT_LOADED = new Object();
+
     QueryManager queryManager;
     ForeignKeysCollection foreignKeysCollection;
+    // column values as last read from or written to the database, indexed like the metadata columns;
+    // null for entities that were never loaded
+    Object[] loadedValues;
 
     public BaseEntity() {
         this.queryManager = QueryManager.get_instance();
         this.foreignKeysCollection = new ForeignKeysCollection();
     }
 
-    private String capitalize(String str) {
-        if (str == null || str.isEmpty()) {
-            return str;
-        }
-        return str.substring(0, 1).toUpperCase() + str.substring(1);
+    EntityMetadata metadata() {
+        return EntityMetadata.of(this.getClass());
     }
 
     private LinkedHashMap<String, Object> getColumnsWithValue(boolean isIdIncluded)  {
         LinkedHashMap<String, Object> columns = new LinkedHashMap<>();
-        Field[] fields = this.getClass().getDeclaredFields();
-        for (Field field : fields) {
-            if(field.isAnnotationPresent(Column.class)) {
-                String colName = field.getName();
-                Column columnAnnotation = field.getAnnotation(Column.class);
-                if(!columnAnnotation.name().isEmpty()) {
-                    colName = columnAnnotation.name();
-                }
-                if(!isIdIncluded && field.isAnnotationPresent(Id.class)) {
-                    continue;
-                }
-                field.setAccessible(true);
-                try {
-
-                    populateColumns(columns, field, colName, columnAnnotation);
-
-                } catch (IllegalAccessException | NoSuchMethodException | InvocationTargetException e) {
-                    System.out.println("[LEGACY ERROR] Error while retrieving entity columns with value: "+e.getMessage());
-                }
+        for (ColumnData column : metadata().getColumns()) {
+            if(!isIdIncluded && column.isId()) {
+                continue;
             }
+            populateColumns(columns, column);
         }
         return columns;
     }
 
-    private void populateColumns(LinkedHashMap<String, Object> columns, Field field, String colName, Column columnAnnotation) throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
-        Object value;
-        Method getter = this.getClass().getMethod("get" + capitalize(field.getName()));
-        value = getter.invoke(this);
+    private void populateColumns(LinkedHashMap<String, Object> columns, ColumnData column) {
+        Object value = column.getValue(this);
         if(value == null) {
-            if(!columnAnnotation.nullable()) {
-                throw new IllegalArgumentException("Field '"+field.getName()+"' is marked as non-nullable but is provided with null value");
+            if(!column.isNullable()) {
+                throw new IllegalArgumentException("Field '"+column.getNameFromEntity()+"' is marked as non-nullable but is provided with null value");
             }
             return;
         }
-        columns.put(colName, value);
+        columns.put(column.getNameFromDb(), value);
     }
 
-    private LinkedHashMap<String, Object> prepareFieldsBeforeSave() throws Exception {
-        // 1) collect all columns annotated with @Column
-        LinkedHashMap<String, Object> columns = new LinkedHashMap<>();
-        Field[] fields = this.getClass().getDeclaredFields();
-
-        // map: dbColumnName -> Field
-        Map<String, Field> columnNameToField = new LinkedHashMap<>();
-        for (Field field : fields) {
-            if(!field.isAnnotationPresent(Column.class)) continue;
-            String colName = field.getName();
-            Column columnAnnotation = field.getAnnotation(Column.class);
-            if(!columnAnnotation.name().isEmpty()) {
-                colName = columnAnnotation.name();
-            }
-            field.setAccessible(true);
-            columnNameToField.put(colName, field);
-        }
-
-        // 2) build dependency graph for generated fields
-        // nodes: db column names of fields annotated with @Generated
-        Map<String, Set<String>> graph = new HashMap<>();
-        for(Map.Entry<String, Field> e : columnNameToField.entrySet()) {
-            String colName = e.getKey();
-            Field field = e.getValue();
-            if(field.isAnnotationPresent(Generated.class)) {
-                graph.putIfAbsent(colName, new HashSet<>());
-                if(field.isAnnotationPresent(DependsOnFieldGeneration.class)) {
-                    DependsOnFieldGeneration dep = field.getAnnotation(DependsOnFieldGeneration.class);
-                    String dependsOn = dep.fieldName();
-                    if(dependsOn == null || dependsOn.isEmpty()) {
-                        throw new IllegalStateException("@DependsOnFieldGeneration on '"+colName+"' must declare a non-empty fieldName");
-                    }
-                    // check that the depended column exists and is also annotated with Generated
-                    Field dependedField = columnNameToField.get(dependsOn);
-                    if(dependedField == null) {
-                        throw new IllegalStateException("Field '"+colName+"' depends on '"+dependsOn+"' which does not exist as a column in entity '"+this.getClass().getSimpleName()+"'");
-                    }
-                    if(!dependedField.isAnnotationPresent(Generated.class)) {
-                        throw new IllegalStateException("Field '"+colName+"' depends on '"+dependsOn+"' but that field is not annotated with @Generated");
-                    }
-                    // edge: depended -> colName (we want to generate depended first)
-                    graph.putIfAbsent(dependsOn, new HashSet<>());
-                    graph.get(dependsOn).add(colName);
-                } else {
-                    // no dependency declared: ensure node exists
-                    graph.putIfAbsent(colName, new HashSet<>());
-                }
-            }
+    void recordLoadedValue(int index, Object value) {
+        if (this.loadedValues == null) {
+            this.loadedValues = new Object[metadata().getColumns().size()];
+            Arrays.fill(this.loadedValues, NOT_LOADED);
         }
+        this.loadedValues[index] = value;
+    }
 
-        // 3) detect cycles and perform topological sort
-        List<String> generationOrder = topologicalSort(graph);
-
-        // 4) generate values for generated fields in order
-        Method getter = null;
-        Object value = null;
-        for(String genCol : generationOrder) {
-            Field field = columnNameToField.get(genCol);
-            if(field == null) continue; // defensive
-            // skip GeneratedAfterPersistence
-            Generated genAnn = field.getAnnotation(Generated.class);
-            if(genAnn.strategy().equals(GeneratedAfterPersistence.class)) {
+    /**
+     * Columns to write on update: every non-null column for entities built by hand, only the columns
+     * whose value differs from the loaded one (including ones set back to null) for loaded entities.
+     */
+    LinkedHashMap<String, Object> getChangedColumns() {
+        if (this.loadedValues == null) {
+            return getColumnsWithValue(false);
+        }
+        LinkedHashMap<String, Object> columns = new LinkedHashMap<>();
+        for (ColumnData column : metadata().getColumns()) {
+            if (column.isId()) {
                 continue;
             }
-
-            getter = this.getClass().getMethod("get" + capitalize(field.getName()));
-            value = getter.invoke(this);
-            if(!genAnn.overWrite() && value != null) {
+            Object value = column.getValue(this);
+            Object loaded = this.loadedValues[column.index];
+            if (loaded == NOT_LOADED ? value == null : Objects.deepEquals(value, loaded)) {
+                // unchanged, or left out of FilterSet.select and never set since
                 continue;
             }
-            Object generatedValue = getGeneratedValue(field);
-            // set generated value on the current object via reflection
-            field.setAccessible(true);
-            field.set(this, generatedValue);
-            columns.put(genCol, generatedValue);
-        }
-
-        // 5) for non-generated columns, populate values (respecting nullable)
-        for(Map.Entry<String, Field> e : columnNameToField.entrySet()) {
-            String colName = e.getKey();
-            Field field = e.getValue();
-            if(field.isAnnotationPresent(Generated.class)) continue; // already handled
-            Column columnAnnotation = field.getAnnotation(Column.class);
-            try {
-                populateColumns(columns, field, colName, columnAnnotation);
-            } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException ex) {
-                System.out.println("[LEGACY ERROR] Error while retrieving entity columns with value: "+ex.getMessage());
+            if (value == null && !column.isNullable()) {
+                throw new IllegalArgumentException("Field '"+column.getNameFromEntity()+"' is marked as non-nullable but is provided with null value");
             }
+            columns.put(column.getNameFromDb(), value);
         }
-
         return columns;
     }
 
-    private List<String> topologicalSort(Map<String, Set<String>> graph) {
-        // Kahn's algorithm
-        Map<String, Integer> inDegree = new HashMap<>();
-        for(String node : graph.keySet()) {
-            inDegree.putIfAbsent(node, 0);
-        }
-        for(Map.Entry<String, Set<String>> e : graph.entrySet()) {
-            for(String to : e.getValue()) {
-                inDegree.put(to, inDegree.getOrDefault(to, 0) + 1);
+    private void markWritten(Map<String, Object> columns) {
+        for (Map.Entry<String, Object> e : columns.entrySet()) {
+            ColumnData column = metadata().getColumn(e.getKey());
+            if (column != null) {
+                recordLoadedValue(column.index, e.getValue());
             }
         }
+    }
+
+    private LinkedHashMap<String, Object> prepareFieldsBeforeSave() throws Exception {
+        // 1) generate values for generated fields in dependency order
+        LinkedHashMap<String, Object> columns = generateValues();
 
-        Deque<String> queue = new ArrayDeque<>();
-        for(Map.Entry<String, Integer> e : inDegree.entrySet()) {
-            if(e.getValue() == 0) queue.add(e.getKey());
+        // 2) for non-generated columns, populate values (respecting nullable)
+        for(ColumnData column : metadata().getColumns()) {
+            if(column.isGenerated()) continue; // already handled
+            populateColumns(columns, column);
         }
 
-        List<String> result = new ArrayList<>();
-        while(!queue.isEmpty()) {
-            String node = queue.removeFirst();
-            result.add(node);
-            for(String neigh : graph.getOrDefault(node, Collections.emptySet())) {
-                inDegree.put(neigh, inDegree.get(neigh) - 1);
-                if(inDegree.get(neigh) == 0) queue.add(neigh);
+        return columns;
+    }
+
+    /**
+     * Runs the @Generated strategies of this entity in dependency order, sets the generated values
+     * on the entity and returns them by column name.
+     */
+    LinkedHashMap<String, Object> generateValues() throws Exception {
+        LinkedHashMap<String, Object> columns = new LinkedHashMap<>();
+        for(ColumnData column : metadata().getGenerationOrder()) {
+            // skip GeneratedAfterPersistence
+            Generated genAnn = column.getGenerated();
+            if(genAnn.strategy().equals(GeneratedAfterPersistence.class)) {
+                continue;
             }
-        }
 
-        // if result size != number of nodes that are generated -> cycle
-        int nodesCount = graph.size();
-        if(result.size() != nodesCount) {
-            // find nodes in cycle
-            Set<String> unresolved = new HashSet<>();
-            for(String n : graph.keySet()) {
-                if(!result.contains(n)) unresolved.add(n);
+            Object value = column.getValue(this);
+            if(!genAnn.overWrite() && value != null) {
+                continue;
             }
-            throw new IllegalStateException("Circular dependency detected among generated fields: " + unresolved);
+            Object generatedValue = getGeneratedValue(column);
+            // set generated value on the current object via reflection
+            column.getField().set(this, generatedValue);
+            columns.put(column.getNameFromDb(), generatedValue);
         }
-
-        return result;
+        return columns;
     }
 
-    private Object getGeneratedValue(Field field) throws InstantiationException, IllegalAccessException, NoSuchMethodException, InvocationTargetException {
-        Generated generatedValueAnnotation = field.getAnnotation(Generated.class);
-        Class<? extends Strategy> strategyClass =  generatedValueAnnotation.strategy();
-        Strategy strategy = strategyClass.getDeclaredConstructor().newInstance();
+    private Object getGeneratedValue(ColumnData column) throws InstantiationException, IllegalAccessException, NoSuchMethodException, InvocationTargetException {
+        Strategy<?> strategy = column.newStrategy();
         // shouldn't happen
         if(strategy instanceof GeneratedAfterPersistence) {
             return null;
         }
-        Object idValue = strategy.generate(this);
+        LegacyGeneratedValue recording = new LegacyGeneratedValue();
+        recording.begin();
+        Object idValue = generate(strategy, this);
+        recording.commit(this.getClass(), column.getNameFromEntity(), strategy.getClass());
         return idValue;
     }
 
-    private Method getIdGetter(String idFieldName) throws Exception {
-        Field[] fields = this.getClass().getDeclaredFields();
-        for (Field field : fields) {
-            if(field.isAnnotationPresent(legacy.annotations.Id.class)) {
-                if(!field.isAnnotationPresent(Column.class)) {
-                    throw new Exception("Found columnd @Id not annotated with @Column, please add @Column annotation to the id column");
-                }
-                Column columnAnnotation = field.getAnnotation(Column.class);
-                if(!columnAnnotation.name().equalsIgnoreCase(idFieldName)) {
-                    continue;
-                }
-                try {
-                    return this.getClass().getMethod("get" + capitalize(field.getName()));
-                } catch (NoSuchMethodException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-        return null;
+    // a strategy is declared with @Generated on a field of the entity it generates for
+    @SuppressWarnings("unchecked")
+    private static Serializable generate(Strategy<?> strategy, BaseEntity entity) {
+        return ((Strategy<BaseEntity>) strategy).generate(entity);
     }
 
-    private Method getFirstIdSetter() {
-        Field[] fields = this.getClass().getDeclaredFields();
-        for (Field field : fields) {
-            if(field.isAnnotationPresent(legacy.annotations.Id.class)) {
-                try {
-                    return this.getClass().getMethod("set" + capitalize(field.getName()), field.getType());
-                } catch (NoSuchMethodException e) {
-                    e.printStackTrace();
-                }
-            }
+    private Object getIdValue(ColumnData idColumn) throws Exception {
+        if(!idColumn.isColumn()) {
+            throw new Exception("Found columnd @Id not annotated with @Column, please add @Column annotation to the id column");
         }
-        return null;
+        return idColumn.getValue(this);
     }
 
     List<String> getIdFieldName() {
-        Field[] fields = this.getClass().getDeclaredFields();
-        return findIdFieldNameInFields(fields);
-    }
-
-    private static List<String> findIdFieldNameInFields(Field[] fields) {
-        List<String> ids = new ArrayList<>();
-        for(Field field : fields) {
-            if(field.isAnnotationPresent(Id.class)) {
-                String colName = field.getName();
-                if(field.isAnnotationPresent(Column.class)) {
-                    Column columnAnnotation = field.getAnnotation(Column.class);
-                    if(!columnAnnotation.name().isEmpty()) {
-                        colName = columnAnnotation.name();
-                    }
-                }
-                ids.add(colName);
-            }
-        }
-        return ids;
+        return metadata().getIdColumnNames();
     }
 
-    private String createInsertSql(LinkedHashMap<String, Object> columnsWithValue) {
+    private String createInsertSql(LinkedHashMap<String, Object> columnsWithValue) throws Exception {
+        return metadata().getSqlTemplates().get(SqlTemplateCache.Operation.INSERT, columnsWithValue.keySet(),
+                () -> buildInsertSql(columnsWithValue));
+    }
+
+    private String buildInsertSql(LinkedHashMap<String, Object> columnsWithValue) {
         StringBuilder sql = new StringBuilder("INSERT INTO ");
         sql.append(getTableNameFromClass(this.getClass())).append(" (");
         for(String col : columnsWithValue.keySet()) {
@@ -313,11 +235,22 @@ public class BaseEntity {
             sql.append("), ");
         }
         sql.setLength(sql.length() - 2); 
+        sql.append(" RETURNING *");
 
         return sql.toString();
     }
 
     private String createUpdateSql(LinkedHashMap<String, Object> columnsWithValue) throws Exception {
+        return createUpdateSql(columnsWithValue, true);
+    }
+
+    private String createUpdateSql(LinkedHashMap<String, Object> columnsWithValue, boolean returning) throws Exception {
+        SqlTemplateCache.Operation operation = returning ? SqlTemplateCache.Operation.UPDATE_RETURNING : SqlTemplateCache.Operation.UPDATE;
+        return metadata().getSqlTemplates().get(operation, columnsWithValue.keySet(),
+                () -> buildUpdateSql(columnsWithValue, returning));
+    }
+
+    private String buildUpdateSql(LinkedHashMap<String, Object> columnsWithValue, boolean returning) throws Exception {
         StringBuilder sql = new StringBuilder("UPDATE ");
         List<String> idFieldName = this.getIdFieldName();
 
@@ -342,58 +275,238 @@ public class BaseEntity {
             }
         }
 
-        sql.append(" RETURNING *");
+        if(returning) {
+            sql.append(" RETURNING *");
+        }
         return sql.toString();
     }
 
+    private String createDeleteSql() throws Exception {
+        return metadata().getSqlTemplates().get(SqlTemplateCache.Operation.DELETE, Collections.emptyList(),
+                this::buildDeleteSql);
+    }
+
+    private String buildDeleteSql() throws Exception {
+        List<String> idFieldName = this.getIdFieldName();
+        String sql = "DELETE FROM " + getTableNameFromClass(this.getClass()) + " WHERE ";
+        String afterWhere = "";
+        for(int i = 0; i < idFieldName.size(); i++) {
+            afterWhere += idFieldName.get(i) + " = ?";
+            if(i < idFieldName.size() - 1) {
+                afterWhere += " AND ";
+            }
+        }
+        if(afterWhere.isEmpty() || afterWhere.equals("")) {
+            throw new Exception("[LEGACY ERROR] Delete operation invalid due to unspecified id field in entity class: "+this.getClass().getSimpleName());
+        }
+        return sql+afterWhere;
+    }
+
+    Object[] getIdValues() throws Exception {
+        List<ColumnData> idColumns = metadata().getIdColumns();
+        Object[] ids = new Object[idColumns.size()];
+        for(int i = 0; i < idColumns.size(); i++) {
+            ids[i] = this.getIdValue(idColumns.get(i));
+        }
+        return ids;
+    }
+
+    private Object[] getUpdateParams(LinkedHashMap<String, Object> columnsWithValue) throws Exception {
+        for(ColumnData idColumn : metadata().getIdColumns()) {
+            Object id = this.getIdValue(idColumn);
+            columnsWithValue.put(idColumn.getNameFromDb(), id);
+        }
+        return columnsWithValue.values().toArray();
+    }
+
     public BaseEntity save() throws Exception {
         LinkedHashMap<String, Object> columnsWithValue = prepareFieldsBeforeSave();
         String sqlStr = createInsertSql(columnsWithValue);
-        System.out.println("[DEBUG Legacy Framework] (BaseEntity.save) Generated SQL: " + sqlStr);
         Object[] params = columnsWithValue.values().toArray();
 
         RawObject rawObject = this.queryManager.executeInsertReturning(sqlStr, params);
 
-        return rawObject.toEntity(this.getClass());
+        BaseEntity saved = rawObject.toEntity(this.getClass());
+        saved.invalidateCache();
+        return saved;
     }
     
+    /**
+     * Inserts all entities with multi-row INSERT ... RETURNING statements and returns the persisted rows
+     * in input order. Rows sharing the same columns are sent together, in chunks that stay under
+     * PostgreSQL's bind-parameter limit; the whole list, whatever its entity classes, is inserted in a
+     * single transaction (joined through a savepoint when one is already open, see inTransaction).
+     * <p>
+     * Limitation: the returned rows (and so the generated keys) are matched to the input entities by
+     * position, assuming PostgreSQL returns the RETURNING rows in VALUES order. PostgreSQL does so for
+     * a plain multi-row INSERT, but does not guarantee it; when the generated keys must be exact (e.g.
+     * with triggers or rules on the table), save the entities one by one.
+     */
+    public static <T extends BaseEntity> List<T> saveAll(List<T> entities) throws Exception {
+        if (entities.isEmpty()) {
+            return new ArrayList<>();
+        }
+        return QueryManager.get_instance().inTransaction(() -> insertAll(entities));
+    }
+
+    private static <T extends BaseEntity> List<T> insertAll(List<T> entities) throws Exception {
+        List<T> saved = new ArrayList<>(Collections.nCopies(entities.size(), null));
+
+        // entity class -> column set -> input positions
+        Map<Class<?>, Map<Set<String>, List<Integer>>> groups = new LinkedHashMap<>();
+        List<LinkedHashMap<String, Object>> rows = new ArrayList<>(entities.size());
+        for (int i = 0; i < entities.size(); i++) {
+            BaseEntity entity = entities.get(i);
+            if (entity instanceof BaseView) {
+                throw new UnsupportedOperationException("Operation is not supported for views.");
+            }
+            LinkedHashMap<String, Object> columnsWithValue = entity.prepareFieldsBeforeSave();
+            rows.add(columnsWithValue);
+            groups.computeIfAbsent(entity.getClass(), k -> new LinkedHashMap<>())
+                    .computeIfAbsent(columnsWithValue.keySet(), k -> new ArrayList<>())
+                    .add(i);
+        }
+
+        QueryManager qm = QueryManager.get_instance();
+        for (Map<Set<String>, List<Integer>> byColumns : groups.values()) {
+            List<String> sqls = new ArrayList<>();
+            List<Object[]> params = new ArrayList<>();
+            List<Integer> positions = new ArrayList<>();
+            BaseEntity first = null;
+
+            for (List<Integer> indexes : byColumns.values()) {
+                first = entities.get(indexes.get(0));
+                // keep the column order of the first row for every row of the chunk
+                List<String> columnOrder = new ArrayList<>(rows.get(indexes.get(0)).keySet());
+                int chunkSize = Math.max(1, MAX_BIND_PARAMETERS / Math.max(1, columnOrder.size()));
+                for (int start = 0; start < indexes.size(); start += chunkSize) {
+                    List<Integer> chunk = indexes.subList(start, Math.min(start + chunkSize, indexes.size()));
+                    List<LinkedHashMap<String, Object>> chunkRows = new ArrayList<>(chunk.size());
+                    Object[] chunkParams = new Object[chunk.size() * columnOrder.size()];
+                    int p = 0;
+                    for (int index : chunk) {
+                        LinkedHashMap<String, Object> row = rows.get(index);
+                        chunkRows.add(row);
+                        for (String col : columnOrder) {
+                            chunkParams[p++] = row.get(col);
+                        }
+                    }
+                    sqls.add(first.createMultipleInsertSql(chunkRows));
+                    params.add(chunkParams);
+                    positions.addAll(chunk);
+                }
+            }
+
+            // matched by position, see the limitation in saveAll
+            List<? extends BaseEntity> inserted = qm.executeInsertReturning(first.getClass(), sqls, params);
+            for (int i = 0; i < inserted.size(); i++) {
+                // rows of the class of entities at these positions, so of T
+                @SuppressWarnings("unchecked")
+                T row = (T) inserted.get(i);
+                saved.set(positions.get(i), row);
+                ((BaseEntity) row).invalidateCache();
+            }
+        }
+
+        return saved;
+    }
+
     public BaseEntity update() throws Exception {
-        LinkedHashMap<String, Object> columnsWithValue = this.getColumnsWithValue(false);
-        String sql = this.createUpdateSql(columnsWithValue);
-        List<String> idFieldName = this.getIdFieldName();
-        for(String idField : idFieldName) {
-            Method idGetter = this.getIdGetter(idField);
-            Object id = idGetter.invoke(this);
-            columnsWithValue.put(idField, id);
+        LinkedHashMap<String, Object> columnsWithValue = this.getChangedColumns();
+        if (columnsWithValue.isEmpty()) {
+            // nothing changed since the entity was loaded
+            return this;
         }
-        Object[] params = columnsWithValue.values().toArray();
+        String sql = this.createUpdateSql(columnsWithValue);
+        Object[] params = this.getUpdateParams(columnsWithValue);
 
         this.queryManager.executeUpdate(sql, params);        
+        this.markWritten(columnsWithValue);
+        this.invalidateCache();
         return this;
     }
 
-    public void delete() throws Exception {
-        List<String> idFieldName = this.getIdFieldName();
-        String sql = "DELETE FROM " + getTableNameFromClass(this.getClass()) + " WHERE ";
-        String afterWhere = "";
-        Object[] ids = new Object[idFieldName.size()];
-        for(int i = 0; i < idFieldName.size(); i++) {
-            Method idGetter = this.getIdGetter(idFieldName.get(i));
-            if (idGetter == null) {
-                throw new IllegalStateException("'"+idFieldName.get(i)+"' Id getter not found on entity " + this.getClass().getSimpleName());
+    /**
+     * Updates all entities through JDBC batches on one connection and in one transaction.
+     * Entities that write the same columns share a PreparedStatement.
+     * Returns the update count of each entity, in input order. Entities with no changed column are not
+     * sent and get Statement.SUCCESS_NO_INFO, so that 0 still means the row was not found.
+     */
+    public static <T extends BaseEntity> int[] updateAll(List<T> entities) throws Exception {
+        Map<String, List<Integer>> positionsBySql = new LinkedHashMap<>();
+        Map<String, List<Object[]>> paramsBySql = new LinkedHashMap<>();
+        List<LinkedHashMap<String, Object>> written = new ArrayList<>(Collections.nCopies(entities.size(), null));
+        for (int i = 0; i < entities.size(); i++) {
+            BaseEntity entity = entities.get(i);
+            if (entity instanceof BaseView) {
+                throw new UnsupportedOperationException("Operation is not supported for views.");
             }
+            LinkedHashMap<String, Object> columnsWithValue = entity.getChangedColumns();
+            if (columnsWithValue.isEmpty()) {
+                continue;
+            }
+            written.set(i, new LinkedHashMap<>(columnsWithValue));
+            String sql = entity.createUpdateSql(columnsWithValue, false);
+            positionsBySql.computeIfAbsent(sql, k -> new ArrayList<>()).add(i);
+            paramsBySql.computeIfAbsent(sql, k -> new ArrayList<>()).add(entity.getUpdateParams(columnsWithValue));
+        }
+        int[] counts = executeBatches(entities.size(), positionsBySql, paramsBySql);
+        for (int i = 0; i < entities.size(); i++) {
+            if (written.get(i) == null) {
+                counts[i] = Statement.SUCCESS_NO_INFO;
+            } else {
+                ((BaseEntity) entities.get(i)).markWritten(written.get(i));
+                ((BaseEntity) entities.get(i)).invalidateCache();
+            }
+        }
+        return counts;
+    }
 
-            Object idValue = idGetter.invoke(this);
-            ids[i] = idValue;
-            afterWhere += idFieldName.get(i) + " = ?";
-            if(i < idFieldName.size() - 1) {
-                afterWhere += " AND ";
+    /**
+     * Deletes all entities through JDBC batches on one connection and in one transaction.
+     * Returns the delete count of each entity, in input order.
+     */
+    public static <T extends BaseEntity> int[] deleteAll(List<T> entities) throws Exception {
+        Map<String, List<Integer>> positionsBySql = new LinkedHashMap<>();
+        Map<String, List<Object[]>> paramsBySql = new LinkedHashMap<>();
+        for (int i = 0; i < entities.size(); i++) {
+            BaseEntity entity = entities.get(i);
+            if (entity instanceof BaseView) {
+                throw new UnsupportedOperationException("Operation is not supported for views.");
             }
+            String sql = entity.createDeleteSql();
+            positionsBySql.computeIfAbsent(sql, k -> new ArrayList<>()).add(i);
+            paramsBySql.computeIfAbsent(sql, k -> new ArrayList<>()).add(entity.getIdValues());
         }
-        if(afterWhere.isEmpty() || afterWhere.equals("")) {
-            throw new Exception("[LEGACY ERROR] Delete operation invalid due to unspecified id field in entity class: "+this.getClass().getSimpleName());
+        int[] counts = executeBatches(entities.size(), positionsBySql, paramsBySql);
+        for (T entity : entities) {
+            ((BaseEntity) entity).invalidateCache();
         }
-        this.queryManager.executeUpdate(sql+afterWhere, ids);
+        return counts;
+    }
+
+    private static int[] executeBatches(int size, Map<String, List<Integer>> positionsBySql, Map<String, List<Object[]>> paramsBySql) throws Exception {
+        int[] counts = new int[size];
+        if (positionsBySql.isEmpty()) {
+            return counts;
+        }
+        List<String> sqls = new ArrayList<>(paramsBySql.keySet());
+        List<int[]> results = QueryManager.get_instance().executeBatch(sqls, new ArrayList<>(paramsBySql.values()));
+        for (int i = 0; i < sqls.size(); i++) {
+            List<Integer> positions = positionsBySql.get(sqls.get(i));
+            int[] result = results.get(i);
+            for (int j = 0; j < positions.size(); j++) {
+                counts[positions.get(j)] = result[j];
+            }
+        }
+        return counts;
+    }
+
+    public void delete() throws Exception {
+        String sql = this.createDeleteSql();
+        Object[] ids = this.getIdValues();
+        this.queryManager.executeUpdate(sql, ids);
+        this.invalidateCache();
     }
 
     public static <T extends BaseEntity> List<T> findAll(Class<T> entityClass) throws Exception {
@@ -403,9 +516,16 @@ public class BaseEntity {
         }
         String sql = "SELECT * FROM " + tableName;
         QueryManager qm = QueryManager.get_instance();
-        List<RawObject> rows = qm.executeSelect(sql);
+        return qm.executeReadOnlySelect(entityClass, sql);
+    }
 
-        return RawObject.mapRowsToEntities(rows, entityClass);
+    /**
+     * findAll that also loads the foreign keys of fetch, with a LEFT JOIN, in the same query.
+     */
+    public static <T extends BaseEntity> List<T> findAll(Class<T> entityClass, Fetch fetch) throws Exception {
+        String sql = createJoinSql(EntityMetadata.of(entityClass), fetch, null);
+        QueryManager qm = QueryManager.get_instance();
+        return qm.executeReadOnlySelect(entityClass, fetch, sql);
     }
 
     public static <T extends BaseEntity> T findById(Object id, Class<T> entityClass) throws Exception {
@@ -413,17 +533,38 @@ public class BaseEntity {
         if (tableName.isEmpty()) {
             throw new IllegalStateException("Entity class " + entityClass.getSimpleName() + " is not annotated with @Entity");
         }
-        T instance = entityClass.getDeclaredConstructor().newInstance();
-        String idFieldName = instance.getIdFieldName().get(0);
-        
-        String sql = "SELECT * FROM " + tableName + " WHERE " + idFieldName + " = ?";
+        EntityMetadata metadata = EntityMetadata.of(entityClass);
+        String sql = metadata.getSqlTemplates().get(SqlTemplateCache.Operation.FIND_BY_ID, Collections.emptyList(),
+                () -> "SELECT * FROM " + tableName + " WHERE " + metadata.getIdColumnNames().get(0) + " = ?");
+        Object[] key = { id };
+        EntityCache cache = readableCache(metadata);
+        long generation = 0;
+        if (cache != null) {
+            T cached = cache.get(key, entityClass);
+            if (cached != null) {
+                return cached;
+            }
+            generation = cache.generation(key);
+        }
+
         QueryManager qm = QueryManager.get_instance();
-        List<RawObject> rows = qm.executeSelect(sql, id);
+        List<T> rows = qm.executeReadOnlySelect(entityClass, sql, id);
         if (rows.isEmpty()) {
             return null;
         }
 
-        return rows.get(0).toEntity(entityClass);
+        T entity = rows.get(0);
+        if (cache != null && isFillable(cache)) {
+            cache.put(key, entity, generation);
+        }
+        return entity;
+    }
+
+    /**
+     * findById on a virtual thread, see QueryManager.supplyAsync.
+     */
+    public static <T extends BaseEntity> CompletableFuture<T> findByIdAsync(Object id, Class<T> entityClass) {
+        return QueryManager.get_instance().supplyAsync(() -> findById(id, entityClass));
     }
 
     public static <T extends BaseEntity> T findById(Map<String, Object> ids, Class<T> entityClass) throws Exception {
@@ -431,61 +572,87 @@ public class BaseEntity {
         if (tableName.isEmpty()) {
             throw new IllegalStateException("Entity class " + entityClass.getSimpleName() + " is not annotated with @Entity");
         }
-        T instance = entityClass.getDeclaredConstructor().newInstance();
-        List<String> idFieldName = instance.getIdFieldName();
+        EntityMetadata metadata = EntityMetadata.of(entityClass);
+        List<String> idFieldName = metadata.getIdColumnNames();
+
+        String sql = metadata.getSqlTemplates().get(SqlTemplateCache.Operation.FIND_BY_IDS, Collections.emptyList(), () -> {
+            String afterWhere = "";
+            for(int i = 0; i < idFieldName.size(); i++) {
+                afterWhere += idFieldName.get(i) + " = ?";
+                if(i < idFieldName.size() - 1) {
+                    afterWhere += " AND ";
+                }
+            }
+            if(afterWhere.isEmpty() || afterWhere.equals("")) {
+                throw new Exception("[LEGACY ERROR] Error while fetching by ids, condition invalid (id annotated fields might be missing in entity declaration)");
+            }
+            return "SELECT * FROM " + tableName + " WHERE " + afterWhere;
+        });
 
-        String sql = "SELECT * FROM " + tableName + " WHERE ";
-        String afterWhere = "";
         Object[] idsParams = new Object[idFieldName.size()];
         for(int i = 0; i < idFieldName.size(); i++) {
-            afterWhere += idFieldName.get(i) + " = ?";
-            if(i < idFieldName.size() - 1) {
-                afterWhere += " AND ";
-            }
             idsParams[i] = ids.get(idFieldName.get(i));
         }
 
-        if(afterWhere.isEmpty() || afterWhere.equals("")) {
-            throw new Exception("[LEGACY ERROR] Error while fetching by ids, condition invalid (id annotated fields might be missing in entity declaration)");
+        EntityCache cache = readableCache(metadata);
+        long generation = 0;
+        if (cache != null) {
+            T cached = cache.get(idsParams, entityClass);
+            if (cached != null) {
+                return cached;
+            }
+            generation = cache.generation(idsParams);
         }
 
         QueryManager qm = QueryManager.get_instance();
-        List<RawObject> rows = qm.executeSelect(sql+afterWhere, idsParams);
+        List<T> rows = qm.executeReadOnlySelect(entityClass, sql, idsParams);
         if (rows.isEmpty()) {
             return null;
         }
 
-        return rows.get(0).toEntity(entityClass);
+        T entity = rows.get(0);
+        if (cache != null && isFillable(cache)) {
+            cache.put(idsParams, entity, generation);
+        }
+        return entity;
     }
 
-    private static String getTableNameFromClass(Class<?> entityClass) {
-        if (entityClass.isAnnotationPresent(Entity.class)) {
-            Entity entityAnnotation = entityClass.getAnnotation(Entity.class);
-            if (!entityAnnotation.tableName().isEmpty()) {
-                return entityAnnotation.tableName();
-            }
+    // inside a Session the transaction may see uncommitted rows, which must not leak into the shared cache
+    private static EntityCache readableCache(EntityMetadata metadata) {
+        EntityCache cache = metadata.getCache();
+        if (cache == null || QueryManager.get_instance().getBoundConnection() != null) {
+            return null;
         }
-        throw new IllegalStateException("The targeted entityClass '"+entityClass.getName()+"' doesn't have an annotated tableName");
+        return cache;
     }
 
-    public static List<Field> getAllForeignKeysFields(Class<? extends BaseEntity> entityClass) {
-        List<Field> fields = new ArrayList<>();
-        for(Field field : entityClass.getDeclaredFields()) {
-            if(field.isAnnotationPresent(ForeignKey.class)) {
-                fields.add(field);
-            }
+    // a lagging replica may still return the row a recent write replaced: replica reads only fill
+    // the cache once no invalidation happened during the read-your-writes window
+    private static boolean isFillable(EntityCache cache) {
+        QueryManager qm = QueryManager.get_instance();
+        return !qm.isReadingFromReplica() || cache.isSettled(TimeUnit.MILLISECONDS.toNanos(qm.getReadYourWritesMillis()));
+    }
+
+    // deferred to the commit inside a transaction, see QueryManager.afterCommit
+    private void invalidateCache() throws Exception {
+        EntityCache cache = metadata().getCache();
+        if (cache != null) {
+            Object[] ids = this.getIdValues();
+            this.queryManager.afterCommit(() -> cache.invalidate(ids));
         }
-        return fields;
+    }
+
+    private static String getTableNameFromClass(Class<?> entityClass) {
+        return EntityMetadata.of(entityClass).getTableName();
+    }
+
+    public static List<Field> getAllForeignKeysFields(Class<? extends BaseEntity> entityClass) {
+        return new ArrayList<>(EntityMetadata.of(entityClass).getForeignKeyFields());
     }
 
     public static <T extends  BaseEntity> List<T> fetch(Class<T> entityClass, String sql, Object...params) throws Exception {
         QueryManager qm = QueryManager.get_instance();
-        List<RawObject> rawObjects = qm.executeSelect(sql, params);
-        List<T> baseEntityList = new ArrayList<>();
-        for(RawObject rawObject : rawObjects){
-            baseEntityList.add(rawObject.toEntity(entityClass));
-        }
-        return baseEntityList;
+        return qm.executeSelect(entityClass, sql, params);
     }
 
     private void mount(String fieldName) throws Exception {
@@ -493,89 +660,99 @@ public class BaseEntity {
             this.foreignKeysCollection = new ForeignKeysCollection();
         }
 
-        Field field = null;
-        String fName = null;
-        List<Field> foreignKeysFields = BaseEntity.getAllForeignKeysFields(this.getClass());
-        for(Field f : foreignKeysFields) {
-            fName = f.getName();
-            if(f.isAnnotationPresent(Column.class)) {
-                Column colAnnotation = f.getAnnotation(Column.class);
-                if(!colAnnotation.name().isEmpty()) {
-                    fName = colAnnotation.name();
-                }
-            }
-            if(fName.equals(fieldName)) {
-                field = f;
-                break;
-            }
-        }
-        if(field == null) {
+        ColumnData foreignKey = metadata().getForeignKeyColumn(fieldName);
+        if(foreignKey == null) {
             throw new IllegalArgumentException("Foreign key field '"+fieldName+"' not found in entity '"+this.getClass().getSimpleName()+"'");
         }
 
-        if(this.foreignKeysCollection.get(fName) != null) {
+        if(this.foreignKeysCollection.isLoadedFor(fieldName, foreignKey.getValue(this))) {
             return;
         }
 
-        Class<? extends BaseEntity> entityClass = null;
-        if(field.isAnnotationPresent(ForeignKey.class)) {
-            ForeignKey fkAnnotation = field.getAnnotation(ForeignKey.class);
-            if (fkAnnotation == null) {
-                throw new IllegalArgumentException("Foreign key annotation not found on field '" + fieldName + "' in entity '" + this.getClass().getSimpleName() + "'");
-            }
-            entityClass = fkAnnotation.entity();
-        }
-
-        if(entityClass != null) {
-            getForeignKeyEntity(fieldName, field, entityClass);
-        }
+        LegacyForeignKeyMount recording = new LegacyForeignKeyMount();
+        recording.begin();
+        getForeignKeyEntity(foreignKey);
+        recording.commit(this.getClass(), fieldName, 1, false);
+    }
 
+    private void getForeignKeyEntity(ColumnData foreignKey) throws Exception {
+        Object value = foreignKey.getValue(this);
+        this.foreignKeysCollection.put(foreignKey.getNameFromDb(), loadForeignKey(foreignKey, value), value);
     }
 
-    private void getForeignKeyEntity(String fieldName, Field field, Class<? extends BaseEntity> entityClass) throws Exception {
-        Method getterMethod = this.getClass().getMethod("get"+field.getName().substring(0, 1).toUpperCase() + field.getName().substring(1));
-        Object value = getterMethod.invoke(this);
-        if (value != null) {
-            BaseEntity entity = BaseEntity.findById(value, entityClass);
-            if (entity != null) {
-                this.foreignKeysCollection.put(fieldName, entity);
-            }
-        }
+    private static BaseEntity loadForeignKey(ColumnData foreignKey, Object value) throws Exception {
+        return value == null ? null : BaseEntity.findById(value, foreignKey.getForeignKey().entity());
     }
 
     private void mountAll() throws Exception {
         if (this.foreignKeysCollection == null) {
             this.foreignKeysCollection = new ForeignKeysCollection();
-        } else {
-            this.foreignKeysCollection.clear();
         }
-        List<Field> foreignKeysFields = BaseEntity.getAllForeignKeysFields(this.getClass());
-        if(foreignKeysFields.size() == this.foreignKeysCollection.getAll().size()) {
+        List<ColumnData> missing = new ArrayList<>();
+        List<Object> values = new ArrayList<>();
+        for(ColumnData foreignKey : metadata().getForeignKeyColumns()) {
+            Object value = foreignKey.getValue(this);
+            if(!this.foreignKeysCollection.isLoadedFor(foreignKey.getNameFromDb(), value)) {
+                missing.add(foreignKey);
+                values.add(value);
+            }
+        }
+        if (missing.isEmpty()) {
             return;
         }
-        for(Field field : foreignKeysFields) {
-            String fieldName = field.getName();
-            if(field.isAnnotationPresent(Column.class)) {
-                Column colAnnotation = field.getAnnotation(Column.class);
-                if(!colAnnotation.name().isEmpty()) {
-                    fieldName = colAnnotation.name();
-                }
+        LegacyForeignKeyMount recording = new LegacyForeignKeyMount();
+        recording.begin();
+        // a connection bound by a Session is only visible from this thread, so its relations load one by one
+        if (missing.size() == 1 || this.queryManager.getBoundConnection() != null) {
+            for (ColumnData foreignKey : missing) {
+                getForeignKeyEntity(foreignKey);
             }
+            recording.commit(this.getClass(), foreignKeyNames(missing), missing.size(), false);
+            return;
+        }
 
-            Class<? extends BaseEntity> entityClass = null;
-            if(field.isAnnotationPresent(ForeignKey.class)) {
-                ForeignKey fkAnnotation = field.getAnnotation(ForeignKey.class);
-                if(fkAnnotation == null) continue;
-                entityClass = fkAnnotation.entity();
+        // bounded per call, to a quarter of the pool, so that one entity with many relations leaves
+        // connections to the other threads without making it wait behind their loads
+        Semaphore loadsInFlight = new Semaphore(Math.max(1, DbConn.getMaximumPoolSize() / 4));
+        List<Future<BaseEntity>> loads = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < missing.size(); i++) {
+                ColumnData foreignKey = missing.get(i);
+                Object value = values.get(i);
+                // the loads keep this thread's read-your-writes window, as in QueryManager.supplyAsync
+                loads.add(executor.submit(this.queryManager.carryWrites(() -> {
+                    loadsInFlight.acquire();
+                    try {
+                        return loadForeignKey(foreignKey, value);
+                    } finally {
+                        loadsInFlight.release();
+                    }
+                })));
             }
-
-            if(this.foreignKeysCollection.get(fieldName) == null) {
-                getForeignKeyEntity(fieldName, field, entityClass);
+        }
+        for (int i = 0; i < missing.size(); i++) {
+            try {
+                this.foreignKeysCollection.put(missing.get(i).getNameFromDb(), loads.get(i).get(), values.get(i));
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception cause) {
+                    throw cause;
+                }
+                throw e;
             }
+        }
+        recording.commit(this.getClass(), foreignKeyNames(missing), missing.size(), true);
+    }
 
+    private static String foreignKeyNames(List<ColumnData> foreignKeys) {
+        StringJoiner names = new StringJoiner(", ");
+        for (ColumnData foreignKey : foreignKeys) {
+            names.add(foreignKey.getNameFromDb());
         }
+        return names.toString();
     }
 
+    // the caller names the referenced entity type, as with findById
+    @SuppressWarnings("unchecked")
     public <T extends BaseEntity> T getForeignKey(String fieldName) throws Exception {
         this.mount(fieldName);
         return (T) foreignKeysCollection.get(fieldName);
@@ -586,19 +763,328 @@ public class BaseEntity {
         return foreignKeysCollection;
     }
 
+    /**
+     * Loads the foreign keys of every entity up front, with one "= ANY(?)" query per referenced class
+     * instead of one findById per entity and foreign key; getForeignKey is then served from memory.
+     * Without fkFields every foreign key of the entity class is prefetched.
+     * Entities referencing the same row share the same instance of it.
+     */
+    public static <T extends BaseEntity> void prefetch(List<T> entities, String... fkFields) throws Exception {
+        if (entities == null || entities.isEmpty()) {
+            return;
+        }
+        EntityMetadata metadata = EntityMetadata.of(entities.get(0).getClass());
+        List<ColumnData> foreignKeys = new ArrayList<>();
+        if (fkFields.length == 0) {
+            foreignKeys.addAll(metadata.getForeignKeyColumns());
+        }
+        for (String fieldName : fkFields) {
+            ColumnData foreignKey = metadata.getForeignKeyColumn(fieldName);
+            if(foreignKey == null) {
+                throw new IllegalArgumentException("Foreign key field '"+fieldName+"' not found in entity '"+metadata.getEntityClass().getSimpleName()+"'");
+            }
+            foreignKeys.add(foreignKey);
+        }
+
+        // distinct values to load, grouped by referenced class so that two foreign keys to the same table share a query
+        Map<Class<? extends BaseEntity>, Map<Object, Object>> valuesByClass = new LinkedHashMap<>();
+        for (ColumnData foreignKey : foreignKeys) {
+            Map<Object, Object> values = valuesByClass.computeIfAbsent(foreignKey.getForeignKey().entity(), k -> new LinkedHashMap<>());
+            for (T entity : entities) {
+                Object value = foreignKey.getValue(entity);
+                if (value != null) {
+                    values.putIfAbsent(EntityCache.key(new Object[]{ value }), value);
+                }
+            }
+        }
+
+        Map<Class<? extends BaseEntity>, Map<Object, BaseEntity>> loadedByClass = new HashMap<>();
+        for (Map.Entry<Class<? extends BaseEntity>, Map<Object, Object>> e : valuesByClass.entrySet()) {
+            loadedByClass.put(e.getKey(), findByIds(e.getKey(), e.getValue()));
+        }
+
+        for (ColumnData foreignKey : foreignKeys) {
+            Map<Object, BaseEntity> loaded = loadedByClass.get(foreignKey.getForeignKey().entity());
+            for (T entity : entities) {
+                Object value = foreignKey.getValue(entity);
+                if (value == null) {
+                    continue;
+                }
+                BaseEntity target = loaded.get(EntityCache.key(new Object[]{ value }));
+                ((BaseEntity) entity).foreignKeysCollection.put(foreignKey.getNameFromDb(), target, value);
+            }
+        }
+    }
+
+    // rows of entityClass whose single id is one of the given values, keyed like the values map
+    private static Map<Object, BaseEntity> findByIds(Class<? extends BaseEntity> entityClass, Map<Object, Object> values) throws Exception {
+        Map<Object, BaseEntity> loaded = new HashMap<>();
+        if (values.isEmpty()) {
+            return loaded;
+        }
+        EntityMetadata metadata = EntityMetadata.of(entityClass);
+        ColumnData idColumn = metadata.getIdColumns().get(0);
+
+        List<Object> missing = new ArrayList<>();
+        Map<Object, Long> generations = new HashMap<>();
+        EntityCache cache = readableCache(metadata);
+        for (Map.Entry<Object, Object> e : values.entrySet()) {
+            Object[] key = { e.getValue() };
+            BaseEntity cached = cache != null ? cache.get(key, entityClass) : null;
+            if (cached != null) {
+                loaded.put(e.getKey(), cached);
+            } else {
+                missing.add(e.getValue());
+                if (cache != null) {
+                    generations.put(e.getKey(), cache.generation(key));
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return loaded;
+        }
+
+        StringBuilder sql = new StringBuilder("SELECT * FROM ").append(metadata.getTableName())
+                .append(" WHERE ").append(idColumn.getNameFromDb());
+        List<Object> params = new ArrayList<>();
+        appendIn(sql, missing.toArray(), params);
+        boolean fillCache = cache != null && isFillable(cache);
+        for (BaseEntity entity : QueryManager.get_instance().executeReadOnlySelect(entityClass, sql.toString(), params.toArray())) {
+            Object[] key = { idColumn.getValue(entity) };
+            Object cacheKey = EntityCache.key(key);
+            loaded.put(cacheKey, entity);
+            if (fillCache && generations.containsKey(cacheKey)) {
+                cache.put(key, entity, generations.get(cacheKey));
+            }
+        }
+        return loaded;
+    }
+
     public static <T extends BaseEntity> List<T> filter(
             Class<T> entityClass,
             FilterSet filterSet) throws Exception {
 
-        String tableName = getTableNameFromClass(entityClass);
-        StringBuilder sql = new StringBuilder("SELECT * FROM " + tableName + " WHERE 1 = 1");
+        List<Object> params = new ArrayList<>();
+        String sql = createFilterSql(entityClass, filterSet, params);
+        return QueryManager.get_instance().executeReadOnlySelect(entityClass, sql, params.toArray());
+    }
+
+    /**
+     * See FilterSet.compile.
+     */
+    public static <T extends BaseEntity> PreparedQuery<T> prepare(Class<T> entityClass, FilterSet filterSet) {
+        List<legacy.query.Comparator> comparators = new ArrayList<>();
+        if (filterSet != null && filterSet.getFilters() != null) {
+            for (Filter filter : filterSet.getFilters()) {
+                PreparedQuery.compiledParameter(filter.getComparator(), filter.getValue());
+                comparators.add(filter.getComparator());
+            }
+        }
+        List<Object> params = new ArrayList<>();
+        String sql = createFilterSql(entityClass, filterSet, params);
+        return new PreparedQuery<>(entityClass, sql, params, comparators);
+    }
+
+    /**
+     * filter that also loads the foreign keys of fetch, with a LEFT JOIN, in the same query.
+     */
+    public static <T extends BaseEntity> List<T> filter(Class<T> entityClass, FilterSet filterSet, Fetch fetch) throws Exception {
+        List<Object> params = new ArrayList<>();
+        EntityMetadata metadata = EntityMetadata.of(entityClass);
+        StringBuilder sql = new StringBuilder(createJoinSql(metadata, fetch, projection(metadata, filterSet))).append(" WHERE 1 = 1");
+        appendFilters(sql, "t0.", metadata, filterSet, params);
+        appendSortAndLimit(sql, "t0.", orderKey(metadata, filterSet), filterSet == null ? null : filterSet.getLimit(), params);
+
+        QueryManager qm = QueryManager.get_instance();
+        return qm.executeReadOnlySelect(entityClass, fetch, sql.toString(), params.toArray());
+    }
+
+    /**
+     * filter into a projection record: each record component names a column of entityClass, by column
+     * name or field name, and only those columns are read. FilterSet.select is ignored.
+     */
+    public static <T extends BaseEntity, R extends Record> List<R> filter(Class<T> entityClass, Class<R> projection, FilterSet filterSet) throws Exception {
+        EntityMetadata metadata = EntityMetadata.of(entityClass);
+        List<ColumnData> columns = new ArrayList<>();
+        for (RecordComponent component : projection.getRecordComponents()) {
+            ColumnData column = metadata.getColumn(component.getName());
+            if (column == null) {
+                for (ColumnData candidate : metadata.getColumns()) {
+                    if (candidate.getNameFromEntity().equals(component.getName())) {
+                        column = candidate;
+                        break;
+                    }
+                }
+            }
+            if (column == null) {
+                throw new IllegalArgumentException("Projection component '"+component.getName()+"' matches no column of entity '"+entityClass.getSimpleName()+"'");
+            }
+            columns.add(column);
+        }
+
+        List<Object> params = new ArrayList<>();
+        String sql = createFilterSql(metadata, columns, filterSet, filterSet == null ? null : filterSet.getLimit(), params);
+        return QueryManager.get_instance().executeReadOnlySelectRecords(projection, sql, params.toArray());
+    }
+
+    /**
+     * Number of rows matching filterSet, counted by the database; orderBy and limit are ignored.
+     */
+    public static <T extends BaseEntity> long count(Class<T> entityClass, FilterSet filterSet) throws Exception {
+        List<Object> params = new ArrayList<>();
+        String sql = createSelectSql("COUNT(*) AS count", EntityMetadata.of(entityClass), filterSet, params).toString();
+        List<RawObject> rows = QueryManager.get_instance().executeReadOnlySelect(sql, params.toArray());
+        return ((Number) rows.get(0).getData().get("count")).longValue();
+    }
+
+    public static <T extends BaseEntity> boolean exists(Class<T> entityClass, FilterSet filterSet) throws Exception {
+        List<Object> params = new ArrayList<>();
+        String sql = "SELECT EXISTS (" + createSelectSql("1", EntityMetadata.of(entityClass), filterSet, params) + ") AS found";
+        List<RawObject> rows = QueryManager.get_instance().executeReadOnlySelect(sql, params.toArray());
+        return Boolean.TRUE.equals(rows.get(0).getData().get("found"));
+    }
+
+    /**
+     * Aggregates computed by the database, one row per FilterSet.groupBy group (a single row without
+     * groupBy). Each row holds the grouping columns then the aggregates, labelled with Agg.getAlias();
+     * orderBy may name either and limit applies to the groups.
+     */
+    public static <T extends BaseEntity> List<RawObject> aggregate(Class<T> entityClass, FilterSet filterSet, Agg... aggs) throws Exception {
+        List<Object> params = new ArrayList<>();
+        String sql = createAggregateSql(EntityMetadata.of(entityClass), filterSet, aggs, params);
+        return QueryManager.get_instance().executeReadOnlySelect(sql, params.toArray());
+    }
+
+    /**
+     * aggregate into a record whose components are, in order, the grouping columns then the aggregates.
+     */
+    public static <T extends BaseEntity, R extends Record> List<R> aggregate(Class<T> entityClass, FilterSet filterSet, Class<R> resultClass, Agg... aggs) throws Exception {
+        List<Object> params = new ArrayList<>();
+        String sql = createAggregateSql(EntityMetadata.of(entityClass), filterSet, aggs, params);
+        return QueryManager.get_instance().executeReadOnlySelectRecords(resultClass, sql, params.toArray());
+    }
+
+    private static String createAggregateSql(EntityMetadata metadata, FilterSet filterSet, Agg[] aggs, List<Object> params) {
+        if (aggs.length == 0) {
+            throw new IllegalArgumentException("aggregate requires at least one Agg");
+        }
+        if (filterSet != null && filterSet.getAfter() != null) {
+            throw new IllegalArgumentException("FilterSet.after is not supported by aggregate");
+        }
+        List<String> groupBy = filterSet == null || filterSet.getGroupBy() == null ? Collections.emptyList() : filterSet.getGroupBy();
+        // names are written into the SQL: only columns of the entity and plain aliases get there
+        Set<String> labels = new HashSet<>();
+        StringJoiner selectList = new StringJoiner(", ");
+        for (String name : groupBy) {
+            checkColumn(metadata, name);
+            labels.add(name);
+            selectList.add(name);
+        }
+        for (Agg agg : aggs) {
+            if (agg.getColumn() != null) {
+                checkColumn(metadata, agg.getColumn());
+            }
+            if (!agg.getAlias().matches("[A-Za-z_][A-Za-z0-9_]*")) {
+                throw new IllegalArgumentException("Aggregate alias '"+agg.getAlias()+"' must be a plain SQL identifier");
+            }
+            labels.add(agg.getAlias());
+            selectList.add(agg.toSql());
+        }
+        if (filterSet != null) {
+            for (Sort sort : filterSet.getSorts()) {
+                if (!labels.contains(sort.getColumn())) {
+                    checkColumn(metadata, sort.getColumn());
+                }
+            }
+        }
+        StringBuilder sql = createSelectSql(selectList.toString(), metadata, filterSet, params);
+        if (!groupBy.isEmpty()) {
+            sql.append(" GROUP BY ").append(String.join(", ", groupBy));
+        }
+        appendSortAndLimit(sql, "", filterSet == null ? Collections.emptyList() : filterSet.getSorts(), filterSet == null ? null : filterSet.getLimit(), params);
+        return sql.toString();
+    }
+
+    /**
+     * filter on a virtual thread, see QueryManager.supplyAsync.
+     */
+    public static <T extends BaseEntity> CompletableFuture<List<T>> filterAsync(Class<T> entityClass, FilterSet filterSet) {
+        return QueryManager.get_instance().supplyAsync(() -> filter(entityClass, filterSet));
+    }
+
+    /**
+     * One page of filter, read with keyset paging: filterSet needs an orderBy and a limit, and the next
+     * page is read by passing getNextCursor() to filterSet.after.
+     */
+    public static <T extends BaseEntity> Page<T> page(Class<T> entityClass, FilterSet filterSet) throws Exception {
+        if (filterSet == null || filterSet.getLimit() == null || filterSet.getSorts().isEmpty()) {
+            throw new IllegalArgumentException("Paging requires a FilterSet with an orderBy and a limit");
+        }
+        EntityMetadata metadata = EntityMetadata.of(entityClass);
+        List<ColumnData> keyColumns = new ArrayList<>();
+        for (Sort sort : orderKey(metadata, filterSet)) {
+            keyColumns.add(metadata.getColumn(sort.getColumn()));
+        }
 
+        // the cursor is read from the sort columns, so a projection must include them
+        List<ColumnData> projection = projection(metadata, filterSet);
+        if (projection != null) {
+            for (ColumnData column : keyColumns) {
+                if (!projection.contains(column)) {
+                    projection.add(column);
+                }
+            }
+        }
+
+        // one extra row tells whether there is a next page
+        int limit = filterSet.getLimit();
         List<Object> params = new ArrayList<>();
+        String sql = createFilterSql(metadata, projection, filterSet, limit + 1, params);
+        List<T> rows = QueryManager.get_instance().executeReadOnlySelect(entityClass, sql, params.toArray());
+        if (rows.size() <= limit) {
+            return new Page<>(rows, null);
+        }
+        rows = new ArrayList<>(rows.subList(0, limit));
+        T last = rows.get(limit - 1);
+        Object[] cursor = new Object[keyColumns.size()];
+        for (int i = 0; i < cursor.length; i++) {
+            cursor[i] = keyColumns.get(i).getValue(last);
+        }
+        return new Page<>(rows, cursor);
+    }
+
+    public static <T extends BaseEntity> Stream<T> stream(Class<T> entityClass, FilterSet filterSet) throws Exception {
+        List<Object> params = new ArrayList<>();
+        String sql = createFilterSql(entityClass, filterSet, params);
 
-        List<Filter> filters = filterSet.getFilters();
+        QueryManager qm = QueryManager.get_instance();
+        return qm.executeReadOnlySelectStream(entityClass, sql, params.toArray());
+    }
+
+    private static String createFilterSql(Class<?> entityClass, FilterSet filterSet, List<Object> params) {
+        EntityMetadata metadata = EntityMetadata.of(entityClass);
+        return createFilterSql(metadata, projection(metadata, filterSet), filterSet, filterSet == null ? null : filterSet.getLimit(), params);
+    }
+
+    private static String createFilterSql(EntityMetadata metadata, List<ColumnData> projection, FilterSet filterSet, Integer limit, List<Object> params) {
+        String selectList = projection == null ? "*" : projection.stream().map(ColumnData::getNameFromDb).collect(Collectors.joining(", "));
+        StringBuilder sql = createSelectSql(selectList, metadata, filterSet, params);
+        appendSortAndLimit(sql, "", orderKey(metadata, filterSet), limit, params);
+        return sql.toString();
+    }
+
+    private static StringBuilder createSelectSql(String selectList, EntityMetadata metadata, FilterSet filterSet, List<Object> params) {
+        StringBuilder sql = new StringBuilder("SELECT ").append(selectList)
+                .append(" FROM ").append(metadata.getTableName()).append(" WHERE 1 = 1");
+        appendFilters(sql, "", metadata, filterSet, params);
+        return sql;
+    }
+
+    private static void appendFilters(StringBuilder sql, String alias, EntityMetadata metadata, FilterSet filterSet, List<Object> params) {
+        List<Filter> filters = filterSet == null ? null : filterSet.getFilters();
         if (filters != null) {
             for (Filter filter : filters) {
-                sql.append(" AND ").append(filter.getFieldName());
+                sql.append(" AND ").append(alias).append(filter.getFieldName());
 
                 switch (filter.getComparator()) {
                     case EQUALS -> sql.append(" = ?");
@@ -610,33 +1096,187 @@ public class BaseEntity {
                     case LIKE -> sql.append(" LIKE ?");
                     case ILIKE -> sql.append(" ILIKE ?");
                     case IN -> {
-                        Collection<?> values = (Collection<?>) filter.getValue();
-                        if (values == null || values.isEmpty()) {
-                            throw new IllegalArgumentException("IN comparator requires at least one value");
-                        }
-                        String placeholders = values.stream()
-                                .map(v -> "?")
-                                .collect(Collectors.joining(", "));
-                        sql.append(" IN (").append(placeholders).append(")");
-                        params.addAll(values);
+                        appendIn(sql, (Object[]) PreparedQuery.parameter(filter.getComparator(), filter.getValue()), params);
                         continue;
                     }
                     default -> throw new IllegalArgumentException("Unsupported comparator: " + filter.getComparator());
                 }
 
-                params.add(filter.getValue());
+                params.add(PreparedQuery.parameter(filter.getComparator(), filter.getValue()));
+            }
+        }
+        if (filterSet != null && filterSet.getAfter() != null) {
+            appendKeyset(sql, alias, orderKey(metadata, filterSet), filterSet.getAfter(), params);
+        }
+    }
+
+    // one array parameter whatever the number of values, so the SQL text stays the same; values
+    // PostgreSQL cannot receive as an array get one placeholder each
+    private static void appendIn(StringBuilder sql, Object[] values, List<Object> params) {
+        if (QueryManager.canBindArray(values)) {
+            sql.append(" = ANY(?)");
+            params.add(values);
+            return;
+        }
+        sql.append(" IN (");
+        for (int i = 0; i < values.length; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+            params.add(values[i]);
+        }
+        sql.append(")");
+    }
+
+    // rows strictly after the given key in the sort order
+    private static void appendKeyset(StringBuilder sql, String alias, List<Sort> sorts, Object[] after, List<Object> params) {
+        if (sorts.isEmpty() || sorts.size() != after.length) {
+            throw new IllegalArgumentException("FilterSet.after expects one value per orderBy column and id column not ordered on (" + sorts.size() + "), got " + after.length + "; pass Page.getNextCursor()");
+        }
+        boolean sameDirection = true;
+        for (Sort sort : sorts) {
+            sameDirection &= sort.getDirection() == sorts.get(0).getDirection();
+        }
+        if (sameDirection) {
+            // row comparison, which PostgreSQL answers with a single index range scan
+            StringJoiner columns = new StringJoiner(", ", "(", ")");
+            StringJoiner placeholders = new StringJoiner(", ", "(", ")");
+            for (Sort sort : sorts) {
+                columns.add(alias + sort.getColumn());
+                placeholders.add("?");
+            }
+            sql.append(" AND ").append(columns).append(sorts.get(0).getDirection() == SortDirection.DESC ? " < " : " > ").append(placeholders);
+            params.addAll(Arrays.asList(after));
+            return;
+        }
+        // mixed directions: (a > ?) OR (a = ? AND b < ?) OR ...
+        sql.append(" AND (");
+        for (int i = 0; i < sorts.size(); i++) {
+            if (i > 0) {
+                sql.append(" OR ");
+            }
+            sql.append('(');
+            for (int j = 0; j < i; j++) {
+                sql.append(alias).append(sorts.get(j).getColumn()).append(" = ? AND ");
+                params.add(after[j]);
             }
+            sql.append(alias).append(sorts.get(i).getColumn()).append(sorts.get(i).getDirection() == SortDirection.DESC ? " < ?" : " > ?").append(')');
+            params.add(after[i]);
         }
+        sql.append(')');
+    }
 
-        System.out.println("[DEBUG LEGACY FRAMEWORK] (BaseEntity.filter) Generated SQL: " + sql.toString());
+    /**
+     * The orderBy of filterSet followed by the id columns it does not already order on, in the direction
+     * of its last column: rows then have a total order, so keyset pages neither skip nor repeat rows
+     * sharing the same sort values. Empty without orderBy; unchanged for views without @Id.
+     * Throws IllegalArgumentException for an orderBy that names no column of the entity.
+     */
+    private static List<Sort> orderKey(EntityMetadata metadata, FilterSet filterSet) {
+        if (filterSet == null || filterSet.getSorts().isEmpty()) {
+            return Collections.emptyList();
+        }
+        // sort names are written into the SQL: only columns of the entity get there
+        for (Sort sort : filterSet.getSorts()) {
+            checkColumn(metadata, sort.getColumn());
+        }
+        List<Sort> sorts = new ArrayList<>(filterSet.getSorts());
+        SortDirection direction = sorts.get(sorts.size() - 1).getDirection();
+        for (String idColumn : metadata.getIdColumnNames()) {
+            boolean ordered = false;
+            for (Sort sort : filterSet.getSorts()) {
+                ordered |= sort.getColumn().equals(idColumn);
+            }
+            if (!ordered) {
+                sorts.add(new Sort(idColumn, direction));
+            }
+        }
+        return sorts;
+    }
 
-        return fetch(entityClass, sql.toString(), params.toArray());
+    private static void appendSortAndLimit(StringBuilder sql, String alias, List<Sort> sorts, Integer limit, List<Object> params) {
+        if (!sorts.isEmpty()) {
+            StringJoiner orderBy = new StringJoiner(", ", " ORDER BY ", "");
+            for (Sort sort : sorts) {
+                orderBy.add(alias + sort.getColumn() + " " + sort.getDirection().name());
+            }
+            sql.append(orderBy);
+        }
+        if (limit != null) {
+            sql.append(" LIMIT ?");
+            params.add(limit);
+        }
+    }
+
+    private static void checkColumn(EntityMetadata metadata, String name) {
+        if (metadata.getColumn(name) == null) {
+            throw new IllegalArgumentException("Column '"+name+"' not found in entity '"+metadata.getEntityClass().getSimpleName()+"'");
+        }
+    }
+
+    // columns named by FilterSet.select, or null to read them all
+    private static List<ColumnData> projection(EntityMetadata metadata, FilterSet filterSet) {
+        if (filterSet == null || filterSet.getColumns() == null) {
+            return null;
+        }
+        List<ColumnData> columns = new ArrayList<>();
+        for (String name : filterSet.getColumns()) {
+            ColumnData column = metadata.getColumn(name);
+            if (column == null) {
+                throw new IllegalArgumentException("Column '"+name+"' not found in entity '"+metadata.getEntityClass().getSimpleName()+"'");
+            }
+            columns.add(column);
+        }
+        return columns;
+    }
+
+    // every column is labelled with Fetch.columnLabel so that EntityMapper can tell the tables apart;
+    // with a projection the entity's own columns are restricted to it plus the joined foreign keys
+    private static String createJoinSql(EntityMetadata metadata, Fetch fetch, List<ColumnData> projection) {
+        List<EntityMetadata> tables = new ArrayList<>();
+        tables.add(metadata);
+        StringBuilder joins = new StringBuilder();
+        for (String fieldName : fetch.getForeignKeys()) {
+            ColumnData foreignKey = metadata.getForeignKeyColumn(fieldName);
+            if(foreignKey == null) {
+                throw new IllegalArgumentException("Foreign key field '"+fieldName+"' not found in entity '"+metadata.getEntityClass().getSimpleName()+"'");
+            }
+            EntityMetadata target = EntityMetadata.of(foreignKey.getForeignKey().entity());
+            if (target.getIdColumnNames().size() != 1) {
+                throw new IllegalStateException("Foreign key field '"+fieldName+"' targets entity '"+target.getEntityClass().getSimpleName()+"' which must declare exactly one @Id to be joined");
+            }
+            String alias = "t" + tables.size();
+            joins.append(" LEFT JOIN ").append(target.getTableName()).append(' ').append(alias)
+                    .append(" ON ").append(alias).append('.').append(target.getIdColumnNames().get(0))
+                    .append(" = t0.").append(foreignKey.getNameFromDb());
+            tables.add(target);
+        }
+
+        List<ColumnData> rootColumns = metadata.getColumns();
+        if (projection != null) {
+            rootColumns = new ArrayList<>(projection);
+            for (String fieldName : fetch.getForeignKeys()) {
+                ColumnData foreignKey = metadata.getColumn(fieldName);
+                if (foreignKey != null && !rootColumns.contains(foreignKey)) {
+                    rootColumns.add(foreignKey);
+                }
+            }
+        }
+        StringBuilder sql = new StringBuilder("SELECT ");
+        for (int t = 0; t < tables.size(); t++) {
+            List<ColumnData> columns = t == 0 ? rootColumns : tables.get(t).getColumns();
+            for (ColumnData column : columns) {
+                sql.append('t').append(t).append('.').append(column.getNameFromDb())
+                        .append(" AS ").append(Fetch.columnLabel(t, column.index)).append(", ");
+            }
+        }
+        sql.setLength(sql.length() - 2);
+        sql.append(" FROM ").append(metadata.getTableName()).append(" t0").append(joins);
+        return sql.toString();
     }
 
     public static <T extends BaseEntity> List<T> findBy(String fieldName, Object value, Class<T> entityClass) throws Exception {
         String tableName = getTableNameFromClass(entityClass);
         String sql = "SELECT * FROM " + tableName + " WHERE " + fieldName + " = ?";
-        return fetch(entityClass, sql, value);
+        return QueryManager.get_instance().executeReadOnlySelect(entityClass, sql, value);
     }
 
 }
@@ -0,0 +1,152 @@
+package legacy.schema;
+
+import legacy.query.QueryManager;
+import legacy.strategy.GeneratedAfterPersistence;
+import legacy.utils.DbConn;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Loads entities with PostgreSQL's COPY ... FROM STDIN, which is several times faster than
+ * INSERT statements for large volumes.
+ * Rows are encoded in COPY text format and pushed to the driver in small buffers, so the
+ * source Iterable (a list, a stream, a file reader...) is never held in memory as a whole.
+ */
+public class BulkLoader {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private BulkLoader() {
+    }
+
+    /**
+     * Copies every entity into the table of entityClass and returns the number of rows written.
+     * All @Column fields are copied except the ones generated by the database
+     * (@Generated with GeneratedAfterPersistence); null values are written as NULL, so column
+     * defaults do not apply as they do with save().
+     */
+    public static <T extends BaseEntity> long copyIn(Class<T> entityClass, Iterable<T> entities) throws Exception {
+        if (BaseView.class.isAssignableFrom(entityClass)) {
+            throw new UnsupportedOperationException("Operation is not supported for views.");
+        }
+        EntityMetadata metadata = EntityMetadata.of(entityClass);
+        List<ColumnData> columns = new ArrayList<>();
+        for (ColumnData column : metadata.getColumns()) {
+            if (column.isGenerated() && column.getGenerated().strategy().equals(GeneratedAfterPersistence.class)) {
+                continue;
+            }
+            columns.add(column);
+        }
+        if (columns.isEmpty()) {
+            throw new IllegalStateException("Entity class " + entityClass.getSimpleName() + " has no column to copy");
+        }
+
+        String sql = createCopySql(metadata.getTableName(), columns);
+        Connection bound = QueryManager.get_instance().getBoundConnection();
+        Connection conn = bound != null ? bound : DbConn.getConn();
+        try {
+            CopyIn copyIn = conn.unwrap(PGConnection.class).getCopyAPI().copyIn(sql);
+            try {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream(BUFFER_SIZE);
+                StringBuilder row = new StringBuilder();
+                for (T entity : entities) {
+                    entity.generateValues();
+                    row.setLength(0);
+                    appendRow(row, entity, columns);
+                    byte[] bytes = row.toString().getBytes(StandardCharsets.UTF_8);
+                    buffer.write(bytes, 0, bytes.length);
+                    if (buffer.size() >= BUFFER_SIZE) {
+                        copyIn.writeToCopy(buffer.toByteArray(), 0, buffer.size());
+                        buffer.reset();
+                    }
+                }
+                if (buffer.size() > 0) {
+                    copyIn.writeToCopy(buffer.toByteArray(), 0, buffer.size());
+                }
+                long copied = copyIn.endCopy();
+                QueryManager.get_instance().recordWrite();
+                EntityCache cache = metadata.getCache();
+                if (cache != null) {
+                    QueryManager.get_instance().afterCommit(cache::clear);
+                }
+                return copied;
+            } finally {
+                if (copyIn.isActive()) {
+                    copyIn.cancelCopy();
+                }
+            }
+        } finally {
+            if (conn != bound) {
+                conn.close();
+            }
+        }
+    }
+
+    private static String createCopySql(String tableName, List<ColumnData> columns) {
+        StringBuilder sql = new StringBuilder("COPY ");
+        sql.append(tableName).append(" (");
+        for (ColumnData column : columns) {
+            sql.append(column.getNameFromDb()).append(", ");
+        }
+        sql.setLength(sql.length() - 2);
+        sql.append(") FROM STDIN");
+        return sql.toString();
+    }
+
+    private static void appendRow(StringBuilder row, BaseEntity entity, List<ColumnData> columns) {
+        for (int i = 0; i < columns.size(); i++) {
+            ColumnData column = columns.get(i);
+            if (i > 0) {
+                row.append('\t');
+            }
+            Object value = column.getValue(entity);
+            if (value == null) {
+                if (!column.isNullable()) {
+                    throw new IllegalArgumentException("Field '"+column.getNameFromEntity()+"' is marked as non-nullable but is provided with null value");
+                }
+                row.append("\\N");
+                continue;
+            }
+            appendEscaped(row, format(value));
+        }
+        row.append('\n');
+    }
+
+    private static String format(Object value) {
+        if (value instanceof byte[] bytes) {
+            StringBuilder hex = new StringBuilder(2 + bytes.length * 2).append("\\x");
+            for (byte b : bytes) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        }
+        if (value instanceof Enum<?> e) {
+            return e.name();
+        }
+        if (value instanceof Date date && !(value instanceof java.sql.Date) && !(value instanceof java.sql.Time) && !(value instanceof Timestamp)) {
+            return new Timestamp(date.getTime()).toString();
+        }
+        return value.toString();
+    }
+
+    private static void appendEscaped(StringBuilder row, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\' -> row.append("\\\\");
+                case '\n' -> row.append("\\n");
+                case '\r' -> row.append("\\r");
+                case '\t' -> row.append("\\t");
+                default -> row.append(c);
+            }
+        }
+    }
+}
@@ -1,9 +1,37 @@
 package legacy.schema;
 
+import legacy.annotations.Column;
+import legacy.annotations.DependsOnFieldGeneration;
+import legacy.annotations.ForeignKey;
+import legacy.annotations.Generated;
+import legacy.annotations.Id;
+import legacy.strategy.Strategy;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
 public class ColumnData {
     String nameFromDb;
     String nameFromEntity;
 
+    Field field;
+    Method getter;
+    Method setter;
+    Function<Object, Object> reader;
+    BiConsumer<Object, Object> writer;
+    Column column;
+    Generated generated;
+    DependsOnFieldGeneration dependsOn;
+    ForeignKey foreignKey;
+    Constructor<?> strategyConstructor;
+    boolean id;
+    // position among the entity's @Column fields, -1 for fields that are not columns
+    int index = -1;
+
     public ColumnData(String nameFromDb, String nameFromEntity) {
         this.nameFromDb = nameFromDb;
         this.nameFromEntity = nameFromEntity;
@@ -12,6 +40,81 @@ public class ColumnData {
     public ColumnData() {
     }
 
+    ColumnData(Class<?> entityClass, Field field) {
+        this.field = field;
+        this.nameFromEntity = field.getName();
+        this.column = field.getAnnotation(Column.class);
+        this.generated = field.getAnnotation(Generated.class);
+        this.dependsOn = field.getAnnotation(DependsOnFieldGeneration.class);
+        this.foreignKey = field.getAnnotation(ForeignKey.class);
+        this.id = field.isAnnotationPresent(Id.class);
+        this.nameFromDb = (column != null && !column.name().isEmpty()) ? column.name() : field.getName();
+
+        field.setAccessible(true);
+        String suffix = capitalize(field.getName());
+        try {
+            this.getter = entityClass.getMethod("get" + suffix);
+        } catch (NoSuchMethodException e) {
+            this.getter = null;
+        }
+        try {
+            this.setter = entityClass.getMethod("set" + suffix, field.getType());
+        } catch (NoSuchMethodException e) {
+            this.setter = null;
+        }
+        this.reader = EntityAccessors.reader(entityClass, getter, field);
+        this.writer = EntityAccessors.writer(entityClass, setter, field);
+        if (generated != null) {
+            try {
+                this.strategyConstructor = generated.strategy().getDeclaredConstructor();
+            } catch (NoSuchMethodException e) {
+                this.strategyConstructor = null;
+            }
+        }
+    }
+
+    public Object getValue(Object entity) {
+        return reader.apply(entity);
+    }
+
+    public void setValue(Object entity, Object value) {
+        if (value == null && field.getType().isPrimitive()) {
+            return;
+        }
+        writer.accept(entity, value);
+    }
+
+    /**
+     * Writes a value read from the database and records it as the entity's loaded value,
+     * so that update() can tell which columns changed afterwards.
+     */
+    public void hydrate(BaseEntity entity, Object value) {
+        setValue(entity, value);
+        if (index >= 0) {
+            // a NULL is not written to a primitive field: record the default it kept, so that
+            // update() does not see the column as changed
+            entity.recordLoadedValue(index, value == null && field.getType().isPrimitive() ? getValue(entity) : value);
+        }
+    }
+
+    /**
+     * Stores target, read in the same row as entity, as the relation of this foreign key
+     * for its current value; a null target records that no row matched.
+     */
+    public void hydrateForeignKey(BaseEntity entity, BaseEntity target) {
+        if (entity.foreignKeysCollection == null) {
+            entity.foreignKeysCollection = new ForeignKeysCollection();
+        }
+        entity.foreignKeysCollection.put(nameFromDb, target, getValue(entity));
+    }
+
+    public Strategy<?> newStrategy() throws NoSuchMethodException, InstantiationException, IllegalAccessException, InvocationTargetException {
+        if (strategyConstructor == null) {
+            throw new NoSuchMethodException(generated.strategy().getName() + ".<init>()");
+        }
+        return (Strategy<?>) strategyConstructor.newInstance();
+    }
+
     public String getNameFromDb() {
         return nameFromDb;
     }
@@ -27,4 +130,59 @@ public class ColumnData {
     public void setNameFromEntity(String nameFromEntity) {
         this.nameFromEntity = nameFromEntity;
     }
+
+    public Field getField() {
+        return field;
+    }
+
+    public Class<?> getType() {
+        return field.getType();
+    }
+
+    public Method getGetter() {
+        return getter;
+    }
+
+    public Method getSetter() {
+        return setter;
+    }
+
+    public Column getColumn() {
+        return column;
+    }
+
+    public Generated getGenerated() {
+        return generated;
+    }
+
+    public DependsOnFieldGeneration getDependsOn() {
+        return dependsOn;
+    }
+
+    public ForeignKey getForeignKey() {
+        return foreignKey;
+    }
+
+    public boolean isId() {
+        return id;
+    }
+
+    public boolean isColumn() {
+        return column != null;
+    }
+
+    public boolean isGenerated() {
+        return generated != null;
+    }
+
+    public boolean isNullable() {
+        return column == null || column.nullable();
+    }
+
+    static String capitalize(String str) {
+        if (str == null || str.isEmpty()) {
+            return str;
+        }
+        return str.substring(0, 1).toUpperCase() + str.substring(1);
+    }
 }
@@ -0,0 +1,110 @@
+package legacy.schema;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Builds the getter/setter functions used by ColumnData.
+ * Accessor methods are spun into real Function/BiConsumer classes with LambdaMetafactory so the JIT
+ * can inline them like hand-written code; fields without accessors are read and written through
+ * field method handles instead.
+ */
+final class EntityAccessors {
+
+    private EntityAccessors() {
+    }
+
+    static Function<Object, Object> reader(Class<?> entityClass, Method getter, Field field) {
+        if (getter != null) {
+            try {
+                MethodHandles.Lookup lookup = lookupFor(entityClass);
+                MethodHandle target = lookup.unreflect(getter);
+                CallSite site = LambdaMetafactory.metafactory(
+                        lookup,
+                        "apply",
+                        MethodType.methodType(Function.class),
+                        MethodType.methodType(Object.class, Object.class),
+                        target,
+                        MethodType.methodType(wrap(getter.getReturnType()), entityClass));
+                return (Function<Object, Object>) site.getTarget().invokeExact();
+            } catch (Throwable e) {
+                // fall back to the field below
+            }
+        }
+        MethodHandle handle = fieldHandle(field, false);
+        return entity -> {
+            if (handle == null) {
+                throw new IllegalStateException("[LEGACY ERROR] Field '" + field.getName() + "' of " + entityClass.getName() + " has no getter and is not accessible");
+            }
+            try {
+                return (Object) handle.invokeExact(entity);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException("[LEGACY ERROR] Unable to read field '" + field.getName() + "' of " + entityClass.getName(), e);
+            }
+        };
+    }
+
+    static BiConsumer<Object, Object> writer(Class<?> entityClass, Method setter, Field field) {
+        if (setter != null) {
+            try {
+                MethodHandles.Lookup lookup = lookupFor(entityClass);
+                MethodHandle target = lookup.unreflect(setter);
+                CallSite site = LambdaMetafactory.metafactory(
+                        lookup,
+                        "accept",
+                        MethodType.methodType(BiConsumer.class),
+                        MethodType.methodType(void.class, Object.class, Object.class),
+                        target,
+                        MethodType.methodType(void.class, entityClass, wrap(setter.getParameterTypes()[0])));
+                return (BiConsumer<Object, Object>) site.getTarget().invokeExact();
+            } catch (Throwable e) {
+                // fall back to the field below
+            }
+        }
+        MethodHandle handle = fieldHandle(field, true);
+        return (entity, value) -> {
+            if (handle == null) {
+                throw new IllegalStateException("[LEGACY ERROR] Field '" + field.getName() + "' of " + entityClass.getName() + " has no setter and is not writable");
+            }
+            try {
+                handle.invokeExact(entity, value);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException("[LEGACY ERROR] Unable to write field '" + field.getName() + "' of " + entityClass.getName(), e);
+            }
+        };
+    }
+
+    private static MethodHandles.Lookup lookupFor(Class<?> entityClass) throws IllegalAccessException {
+        // defining the spun class next to the entity keeps it in the entity's class loader
+        return MethodHandles.privateLookupIn(entityClass, MethodHandles.lookup());
+    }
+
+    private static MethodHandle fieldHandle(Field field, boolean setter) {
+        // null when the field can't be reached either (e.g. final without a setter); the accessor fails on use
+        try {
+            field.setAccessible(true);
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodHandle handle = setter ? lookup.unreflectSetter(field) : lookup.unreflectGetter(field);
+            return handle.asType(setter
+                    ? MethodType.methodType(void.class, Object.class, Object.class)
+                    : MethodType.methodType(Object.class, Object.class));
+        } catch (IllegalAccessException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static Class<?> wrap(Class<?> type) {
+        return MethodType.methodType(type).wrap().returnType();
+    }
+}
@@ -0,0 +1,236 @@
+package legacy.schema;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Second-level cache of findById results for one entity class, enabled with @Cacheable or enable().
+ * <p>
+ * Entries are split over lock-striped LRU segments and expire after a fixed time to live. Only the
+ * column values are stored, mutable ones copied: every hit builds a fresh entity, so callers can
+ * modify what they get without affecting other readers. save/update/delete (and their batch variants)
+ * invalidate the ids they write, once their transaction commits; writes that bypass BaseEntity (raw
+ * SQL, other applications) are only caught up by the time to live.
+ */
+public class EntityCache {
+
+    private static final int STRIPES = 16;
+
+    public record Stats(long hits, long misses, long evictions, long invalidations, long size) {
+    }
+
+    private record Entry(Object[] values, long expiresAt) {
+    }
+
+    private final EntityMetadata metadata;
+    private final long ttlNanos;
+    private final Segment[] segments;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    // when an entry was last invalidated, to hold back replica reads that may predate the write
+    private volatile long lastInvalidation = System.nanoTime();
+
+    EntityCache(EntityMetadata metadata, int maxSize, long ttlSeconds) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Cache maxSize must be positive");
+        }
+        this.metadata = metadata;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        // small caches get fewer stripes so that maxSize stays an upper bound
+        int stripes = Integer.highestOneBit(Math.min(STRIPES, maxSize));
+        int perSegment = maxSize / stripes;
+        this.segments = new Segment[stripes];
+        for (int i = 0; i < stripes; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+    }
+
+    public static void enable(Class<? extends BaseEntity> entityClass, int maxSize, long ttlSeconds) {
+        EntityMetadata metadata = EntityMetadata.of(entityClass);
+        metadata.setCache(new EntityCache(metadata, maxSize, ttlSeconds));
+    }
+
+    public static void disable(Class<? extends BaseEntity> entityClass) {
+        EntityMetadata.of(entityClass).setCache(null);
+    }
+
+    /**
+     * The cache of entityClass, or null when caching is not enabled for it.
+     */
+    public static EntityCache of(Class<?> entityClass) {
+        return EntityMetadata.of(entityClass).getCache();
+    }
+
+    <T extends BaseEntity> T get(Object[] ids, Class<T> entityClass) throws Exception {
+        Object key = key(ids);
+        Segment segment = segmentFor(key);
+        Object[] values;
+        synchronized (segment) {
+            Entry entry = segment.get(key);
+            if (entry != null && entry.expiresAt() - System.nanoTime() <= 0) {
+                segment.remove(key);
+                evictions.increment();
+                entry = null;
+            }
+            values = entry == null ? null : entry.values();
+        }
+        if (values == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+
+        T instance = entityClass.cast(metadata.newInstance());
+        List<ColumnData> columns = metadata.getColumns();
+        for (int i = 0; i < columns.size(); i++) {
+            columns.get(i).hydrate(instance, copy(values[i]));
+        }
+        return instance;
+    }
+
+    /**
+     * Invalidation count of the stripe holding ids. A reader takes it before querying the database and
+     * passes it to put, which drops the row when an invalidation happened in between.
+     */
+    long generation(Object[] ids) {
+        Segment segment = segmentFor(key(ids));
+        synchronized (segment) {
+            return segment.generation;
+        }
+    }
+
+    void put(Object[] ids, BaseEntity entity, long generation) {
+        List<ColumnData> columns = metadata.getColumns();
+        Object[] values = new Object[columns.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = copy(columns.get(i).getValue(entity));
+        }
+        Object key = key(ids);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            // the row may predate a write invalidated since it was read
+            if (segment.generation != generation) {
+                return;
+            }
+            segment.put(key, new Entry(values, System.nanoTime() + ttlNanos));
+        }
+    }
+
+    void invalidate(Object[] ids) {
+        lastInvalidation = System.nanoTime();
+        Object key = key(ids);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.generation++;
+            if (segment.remove(key) != null) {
+                invalidations.increment();
+            }
+        }
+    }
+
+    public void clear() {
+        lastInvalidation = System.nanoTime();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.generation++;
+                invalidations.add(segment.size());
+                segment.clear();
+            }
+        }
+    }
+
+    // no invalidation happened in the last windowNanos
+    boolean isSettled(long windowNanos) {
+        return System.nanoTime() - lastInvalidation >= windowNanos;
+    }
+
+    public Stats getStats() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), invalidations.sum(), size);
+    }
+
+    private Segment segmentFor(Object key) {
+        int h = key == null ? 0 : key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (segments.length - 1)];
+    }
+
+    // mutable column values (Date, Timestamp, byte[]...) are copied in and out, so that a caller changing
+    // one in place affects neither the entity that filled the cache nor the next hit
+    private static Object copy(Object value) {
+        if (value instanceof Date date) {
+            return date.clone();
+        }
+        if (value != null && value.getClass().isArray()) {
+            int length = Array.getLength(value);
+            Object copy = Array.newInstance(value.getClass().getComponentType(), length);
+            System.arraycopy(value, 0, copy, 0, length);
+            return copy;
+        }
+        return value;
+    }
+
+    // integral ids are widened so that findById(1, ...) and a Long id column share an entry
+    static Object key(Object[] ids) {
+        Object[] key = new Object[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            Object id = ids[i];
+            if (id instanceof Integer || id instanceof Short || id instanceof Byte) {
+                id = ((Number) id).longValue();
+            }
+            key[i] = id;
+        }
+        return key.length == 1 ? key[0] : Arrays.asList(key);
+    }
+
+    // LRU map of one stripe, guarded by synchronizing on the segment
+    private class Segment {
+        private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final int maxSize;
+        long generation;
+
+        Segment(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        Entry get(Object key) {
+            return entries.get(key);
+        }
+
+        void put(Object key, Entry entry) {
+            entries.put(key, entry);
+            if (entries.size() > maxSize) {
+                Iterator<Object> eldest = entries.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+
+        Entry remove(Object key) {
+            return entries.remove(key);
+        }
+
+        int size() {
+            return entries.size();
+        }
+
+        void clear() {
+            entries.clear();
+        }
+    }
+}
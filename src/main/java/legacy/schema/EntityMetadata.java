@@ -0,0 +1,255 @@
+package legacy.schema;
+
+import legacy.annotations.Cacheable;
+import legacy.annotations.Column;
+import legacy.annotations.Entity;
+import legacy.annotations.ForeignKey;
+import legacy.annotations.Id;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Everything Legacy needs to know about an entity class, resolved once by reflection
+ * and shared by every BaseEntity, BaseView and RawObject operation on that class.
+ */
+public class EntityMetadata {
+
+    private static final Map<Class<?>, EntityMetadata> registry = new ConcurrentHashMap<>();
+
+    private final Class<?> entityClass;
+    private final String tableName;
+    private final Constructor<?> constructor;
+    private final List<ColumnData> columns;
+    private final Map<String, ColumnData> columnsByName;
+    private final List<ColumnData> idColumns;
+    private final List<String> idColumnNames;
+    private final List<ColumnData> foreignKeyColumns;
+    private final List<Field> foreignKeyFields;
+    private final SqlTemplateCache sqlTemplates;
+    private volatile EntityCache cache;
+
+    // computed on first save so that invalid @DependsOnFieldGeneration declarations
+    // only fail the operations that need them, as before
+    private volatile List<ColumnData> generationOrder;
+
+    public static EntityMetadata of(Class<?> entityClass) {
+        EntityMetadata metadata = registry.get(entityClass);
+        if (metadata == null) {
+            metadata = registry.computeIfAbsent(entityClass, EntityMetadata::new);
+        }
+        return metadata;
+    }
+
+    private EntityMetadata(Class<?> entityClass) {
+        this.entityClass = entityClass;
+
+        Entity entityAnnotation = entityClass.getAnnotation(Entity.class);
+        this.tableName = (entityAnnotation != null && !entityAnnotation.tableName().isEmpty()) ? entityAnnotation.tableName() : null;
+
+        Constructor<?> ctor;
+        try {
+            ctor = entityClass.getConstructor();
+        } catch (NoSuchMethodException e) {
+            ctor = null;
+        }
+        this.constructor = ctor;
+
+        List<ColumnData> columns = new ArrayList<>();
+        Map<String, ColumnData> columnsByName = new LinkedHashMap<>();
+        List<ColumnData> idColumns = new ArrayList<>();
+        List<String> idColumnNames = new ArrayList<>();
+        List<ColumnData> foreignKeyColumns = new ArrayList<>();
+        List<Field> foreignKeyFields = new ArrayList<>();
+
+        for (Field field : entityClass.getDeclaredFields()) {
+            boolean isColumn = field.isAnnotationPresent(Column.class);
+            boolean isId = field.isAnnotationPresent(Id.class);
+            boolean isForeignKey = field.isAnnotationPresent(ForeignKey.class);
+            if (!isColumn && !isId && !isForeignKey) {
+                continue;
+            }
+            ColumnData column = new ColumnData(entityClass, field);
+            if (isColumn) {
+                column.index = columns.size();
+                columns.add(column);
+                columnsByName.put(column.getNameFromDb(), column);
+            }
+            if (isId) {
+                idColumns.add(column);
+                idColumnNames.add(column.getNameFromDb());
+            }
+            if (isForeignKey) {
+                foreignKeyColumns.add(column);
+                foreignKeyFields.add(field);
+            }
+        }
+
+        this.columns = Collections.unmodifiableList(columns);
+        this.columnsByName = Collections.unmodifiableMap(columnsByName);
+        this.idColumns = Collections.unmodifiableList(idColumns);
+        this.idColumnNames = Collections.unmodifiableList(idColumnNames);
+        this.foreignKeyColumns = Collections.unmodifiableList(foreignKeyColumns);
+        this.foreignKeyFields = Collections.unmodifiableList(foreignKeyFields);
+        this.sqlTemplates = new SqlTemplateCache(this);
+
+        Cacheable cacheable = entityClass.getAnnotation(Cacheable.class);
+        if (cacheable != null) {
+            this.cache = new EntityCache(this, cacheable.maxSize(), cacheable.ttlSeconds());
+        }
+    }
+
+    public Class<?> getEntityClass() {
+        return entityClass;
+    }
+
+    public String getTableName() {
+        if (tableName == null) {
+            throw new IllegalStateException("The targeted entityClass '"+entityClass.getName()+"' doesn't have an annotated tableName");
+        }
+        return tableName;
+    }
+
+    public Object newInstance() throws Exception {
+        if (constructor == null) {
+            throw new NoSuchMethodException(entityClass.getName() + ".<init>()");
+        }
+        return constructor.newInstance();
+    }
+
+    public List<ColumnData> getColumns() {
+        return columns;
+    }
+
+    public ColumnData getColumn(String columnName) {
+        return columnsByName.get(columnName);
+    }
+
+    public List<ColumnData> getIdColumns() {
+        return idColumns;
+    }
+
+    public List<String> getIdColumnNames() {
+        return idColumnNames;
+    }
+
+    public List<ColumnData> getForeignKeyColumns() {
+        return foreignKeyColumns;
+    }
+
+    public ColumnData getForeignKeyColumn(String columnName) {
+        for (ColumnData column : foreignKeyColumns) {
+            if (column.getNameFromDb().equals(columnName)) {
+                return column;
+            }
+        }
+        return null;
+    }
+
+    public List<Field> getForeignKeyFields() {
+        return foreignKeyFields;
+    }
+
+    EntityCache getCache() {
+        return cache;
+    }
+
+    void setCache(EntityCache cache) {
+        this.cache = cache;
+    }
+
+    SqlTemplateCache getSqlTemplates() {
+        return sqlTemplates;
+    }
+
+    /**
+     * Columns annotated with @Generated, ordered so that every column comes after
+     * the column it declares with @DependsOnFieldGeneration.
+     */
+    public List<ColumnData> getGenerationOrder() {
+        List<ColumnData> order = generationOrder;
+        if (order == null) {
+            order = computeGenerationOrder();
+            generationOrder = order;
+        }
+        return order;
+    }
+
+    private List<ColumnData> computeGenerationOrder() {
+        // nodes: db column names of fields annotated with @Generated
+        Map<String, Set<String>> graph = new HashMap<>();
+        for (ColumnData column : columns) {
+            String colName = column.getNameFromDb();
+            if (!column.isGenerated()) {
+                continue;
+            }
+            graph.putIfAbsent(colName, new HashSet<>());
+            if (column.getDependsOn() != null) {
+                String dependsOn = column.getDependsOn().fieldName();
+                if(dependsOn == null || dependsOn.isEmpty()) {
+                    throw new IllegalStateException("@DependsOnFieldGeneration on '"+colName+"' must declare a non-empty fieldName");
+                }
+                // check that the depended column exists and is also annotated with Generated
+                ColumnData dependedColumn = columnsByName.get(dependsOn);
+                if(dependedColumn == null) {
+                    throw new IllegalStateException("Field '"+colName+"' depends on '"+dependsOn+"' which does not exist as a column in entity '"+entityClass.getSimpleName()+"'");
+                }
+                if(!dependedColumn.isGenerated()) {
+                    throw new IllegalStateException("Field '"+colName+"' depends on '"+dependsOn+"' but that field is not annotated with @Generated");
+                }
+                // edge: depended -> colName (we want to generate depended first)
+                graph.putIfAbsent(dependsOn, new HashSet<>());
+                graph.get(dependsOn).add(colName);
+            }
+        }
+
+        List<ColumnData> order = new ArrayList<>();
+        for (String colName : topologicalSort(graph)) {
+            order.add(columnsByName.get(colName));
+        }
+        return Collections.unmodifiableList(order);
+    }
+
+    static List<String> topologicalSort(Map<String, Set<String>> graph) {
+        // Kahn's algorithm
+        Map<String, Integer> inDegree = new HashMap<>();
+        for(String node : graph.keySet()) {
+            inDegree.putIfAbsent(node, 0);
+        }
+        for(Map.Entry<String, Set<String>> e : graph.entrySet()) {
+            for(String to : e.getValue()) {
+                inDegree.put(to, inDegree.getOrDefault(to, 0) + 1);
+            }
+        }
+
+        Deque<String> queue = new ArrayDeque<>();
+        for(Map.Entry<String, Integer> e : inDegree.entrySet()) {
+            if(e.getValue() == 0) queue.add(e.getKey());
+        }
+
+        List<String> result = new ArrayList<>();
+        while(!queue.isEmpty()) {
+            String node = queue.removeFirst();
+            result.add(node);
+            for(String neigh : graph.getOrDefault(node, Collections.emptySet())) {
+                inDegree.put(neigh, inDegree.get(neigh) - 1);
+                if(inDegree.get(neigh) == 0) queue.add(neigh);
+            }
+        }
+
+        // if result size != number of nodes that are generated -> cycle
+        int nodesCount = graph.size();
+        if(result.size() != nodesCount) {
+            // find nodes in cycle
+            Set<String> unresolved = new HashSet<>();
+            for(String n : graph.keySet()) {
+                if(!result.contains(n)) unresolved.add(n);
+            }
+            throw new IllegalStateException("Circular dependency detected among generated fields: " + unresolved);
+        }
+
+        return result;
+    }
+}
@@ -4,9 +4,12 @@ import legacy.exceptions.ForeignKeyFieldNotFound;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 
 public class ForeignKeysCollection {
     Map<String, Object> foreignKeys;
+    // foreign key column value each relation was loaded for, so a relation is only refetched when that value changes
+    private final Map<String, Object> loadedFor = new HashMap<>();
 
     public ForeignKeysCollection(Map<String, Object> foreignKeys) {
         this.foreignKeys = foreignKeys;
@@ -18,6 +21,24 @@ public class ForeignKeysCollection {
 
     public void put(String key, Object value) {
         foreignKeys.put(key, value);
+        loadedFor.remove(key);
+    }
+
+    void put(String key, Object value, Object foreignKeyValue) {
+        if (value == null) {
+            foreignKeys.remove(key);
+        } else {
+            foreignKeys.put(key, value);
+        }
+        loadedFor.put(key, EntityCache.key(new Object[]{ foreignKeyValue }));
+    }
+
+    boolean isLoadedFor(String key, Object foreignKeyValue) {
+        if (loadedFor.containsKey(key)) {
+            return Objects.equals(loadedFor.get(key), EntityCache.key(new Object[]{ foreignKeyValue }));
+        }
+        // put by hand: kept as long as it is there
+        return foreignKeys.get(key) != null;
     }
 
     public Object get(String key) throws ForeignKeyFieldNotFound {
@@ -31,5 +52,6 @@ public class ForeignKeysCollection {
 
     public void clear() {
         foreignKeys.clear();
+        loadedFor.clear();
     }
 }
@@ -0,0 +1,277 @@
+package legacy.schema;
+
+import legacy.query.QueryManager;
+import legacy.utils.DbConn;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Unit of work bound to one connection and one transaction.
+ * <p>
+ * While the session is open, every query issued from the thread that opened it runs on the session's
+ * connection. findById goes through an identity map, so the same row is loaded once and always
+ * returned as the same instance. save/update/delete are only queued; flush() sends them grouped by
+ * entity class as batches, inserting parents before children and deleting children before parents
+ * according to the @ForeignKey declarations.
+ * <pre>
+ * try (Session session = Session.open()) {
+ *     Vol vol = session.findById(1, Vol.class);
+ *     vol.setPlacesRestantes(vol.getPlacesRestantes() - 1);
+ *     session.update(vol);
+ *     session.save(reservation);
+ *     session.commit();
+ * }
+ * </pre>
+ */
+public class Session implements AutoCloseable {
+
+    private final QueryManager queryManager;
+    private final Connection conn;
+    private final boolean autoCommit;
+    private final Map<Class<?>, Map<Object, BaseEntity>> identityMap = new HashMap<>();
+    private final Set<BaseEntity> pendingSaves = new LinkedHashSet<>();
+    private final Set<BaseEntity> pendingUpdates = new LinkedHashSet<>();
+    private final Set<BaseEntity> pendingDeletes = new LinkedHashSet<>();
+    private boolean closed;
+
+    private Session(QueryManager queryManager, Connection conn) throws SQLException {
+        this.queryManager = queryManager;
+        this.conn = conn;
+        this.autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        queryManager.bindConnection(conn);
+    }
+
+    public static Session open() throws SQLException {
+        Connection conn = DbConn.getConn();
+        try {
+            return new Session(QueryManager.get_instance(), conn);
+        } catch (SQLException | RuntimeException e) {
+            conn.close();
+            throw e;
+        }
+    }
+
+    public <T extends BaseEntity> T findById(Object id, Class<T> entityClass) throws Exception {
+        checkOpen();
+        Map<Object, BaseEntity> entities = identityMap.computeIfAbsent(entityClass, k -> new HashMap<>());
+        Object key = identityKey(new Object[] { id });
+        BaseEntity entity = entities.get(key);
+        if (entity == null) {
+            entity = BaseEntity.findById(id, entityClass);
+            if (entity != null) {
+                entities.put(key, entity);
+            }
+        }
+        return entityClass.cast(entity);
+    }
+
+    public <T extends BaseEntity> T findById(Map<String, Object> ids, Class<T> entityClass) throws Exception {
+        checkOpen();
+        List<String> idColumns = EntityMetadata.of(entityClass).getIdColumnNames();
+        Object[] values = new Object[idColumns.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = ids.get(idColumns.get(i));
+        }
+        Map<Object, BaseEntity> entities = identityMap.computeIfAbsent(entityClass, k -> new HashMap<>());
+        Object key = identityKey(values);
+        BaseEntity entity = entities.get(key);
+        if (entity == null) {
+            entity = BaseEntity.findById(ids, entityClass);
+            if (entity != null) {
+                entities.put(key, entity);
+            }
+        }
+        return entityClass.cast(entity);
+    }
+
+    public void save(BaseEntity entity) {
+        checkOpen();
+        checkWritable(entity);
+        pendingSaves.add(entity);
+    }
+
+    public void update(BaseEntity entity) {
+        checkOpen();
+        checkWritable(entity);
+        if (!pendingSaves.contains(entity)) {
+            pendingUpdates.add(entity);
+        }
+    }
+
+    public void delete(BaseEntity entity) {
+        checkOpen();
+        checkWritable(entity);
+        pendingUpdates.remove(entity);
+        if (pendingSaves.remove(entity)) {
+            // never reached the database
+            return;
+        }
+        pendingDeletes.add(entity);
+    }
+
+    /**
+     * Sends every queued write: inserts in foreign key order, then updates, then deletes in reverse
+     * foreign key order, each as one batch per entity class.
+     */
+    public void flush() throws Exception {
+        checkOpen();
+        if (pendingSaves.isEmpty() && pendingUpdates.isEmpty() && pendingDeletes.isEmpty()) {
+            return;
+        }
+
+        Map<Class<?>, List<BaseEntity>> saves = groupByClass(pendingSaves);
+        Map<Class<?>, List<BaseEntity>> updates = groupByClass(pendingUpdates);
+        Map<Class<?>, List<BaseEntity>> deletes = groupByClass(pendingDeletes);
+
+        Set<Class<?>> classes = new LinkedHashSet<>();
+        classes.addAll(saves.keySet());
+        classes.addAll(updates.keySet());
+        classes.addAll(deletes.keySet());
+        List<Class<?>> order = foreignKeyOrder(classes);
+
+        for (Class<?> entityClass : order) {
+            List<BaseEntity> entities = saves.get(entityClass);
+            if (entities == null) {
+                continue;
+            }
+            List<BaseEntity> saved = BaseEntity.saveAll(entities);
+            EntityMetadata metadata = EntityMetadata.of(entityClass);
+            for (int i = 0; i < entities.size(); i++) {
+                BaseEntity entity = entities.get(i);
+                BaseEntity persisted = saved.get(i);
+                // copy database-generated values back so the caller's instance is the managed one
+                for (ColumnData column : metadata.getColumns()) {
+                    column.hydrate(entity, column.getValue(persisted));
+                }
+                register(entity);
+            }
+        }
+        for (Class<?> entityClass : order) {
+            List<BaseEntity> entities = updates.get(entityClass);
+            if (entities != null) {
+                BaseEntity.updateAll(entities);
+            }
+        }
+        for (int i = order.size() - 1; i >= 0; i--) {
+            List<BaseEntity> entities = deletes.get(order.get(i));
+            if (entities == null) {
+                continue;
+            }
+            BaseEntity.deleteAll(entities);
+            for (BaseEntity entity : entities) {
+                Map<Object, BaseEntity> managed = identityMap.get(entity.getClass());
+                if (managed != null) {
+                    managed.remove(identityKey(entity.getIdValues()));
+                }
+            }
+        }
+
+        pendingSaves.clear();
+        pendingUpdates.clear();
+        pendingDeletes.clear();
+    }
+
+    public void commit() throws Exception {
+        flush();
+        conn.commit();
+        queryManager.recordWrite();
+        queryManager.runAfterCommit();
+    }
+
+    /**
+     * Rolls the transaction back and forgets queued writes. Managed instances are dropped as well,
+     * since their state may no longer match the database.
+     */
+    public void rollback() throws SQLException {
+        checkOpen();
+        pendingSaves.clear();
+        pendingUpdates.clear();
+        pendingDeletes.clear();
+        identityMap.clear();
+        queryManager.discardAfterCommit();
+        conn.rollback();
+    }
+
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Closes the session, rolling back anything that was not committed.
+     */
+    @Override
+    public void close() throws SQLException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queryManager.unbindConnection();
+        try {
+            conn.rollback();
+            conn.setAutoCommit(autoCommit);
+        } finally {
+            conn.close();
+        }
+    }
+
+    private void register(BaseEntity entity) throws Exception {
+        identityMap.computeIfAbsent(entity.getClass(), k -> new HashMap<>())
+                .put(identityKey(entity.getIdValues()), entity);
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("[LEGACY ERROR] Session is closed");
+        }
+    }
+
+    private static void checkWritable(BaseEntity entity) {
+        if (entity instanceof BaseView) {
+            throw new UnsupportedOperationException("Operation is not supported for views.");
+        }
+    }
+
+    private static Map<Class<?>, List<BaseEntity>> groupByClass(Collection<BaseEntity> entities) {
+        Map<Class<?>, List<BaseEntity>> groups = new LinkedHashMap<>();
+        for (BaseEntity entity : entities) {
+            groups.computeIfAbsent(entity.getClass(), k -> new ArrayList<>()).add(entity);
+        }
+        return groups;
+    }
+
+    // parents first: a class comes after every class its @ForeignKey fields point to
+    private static List<Class<?>> foreignKeyOrder(Set<Class<?>> classes) {
+        Map<String, Class<?>> byName = new HashMap<>();
+        Map<String, Set<String>> graph = new HashMap<>();
+        for (Class<?> entityClass : classes) {
+            byName.put(entityClass.getName(), entityClass);
+            graph.putIfAbsent(entityClass.getName(), new HashSet<>());
+        }
+        for (Class<?> entityClass : classes) {
+            for (ColumnData foreignKey : EntityMetadata.of(entityClass).getForeignKeyColumns()) {
+                Class<?> parent = foreignKey.getForeignKey().entity();
+                if (parent != entityClass && classes.contains(parent)) {
+                    graph.get(parent.getName()).add(entityClass.getName());
+                }
+            }
+        }
+        List<String> sorted;
+        try {
+            sorted = EntityMetadata.topologicalSort(graph);
+        } catch (IllegalStateException e) {
+            throw new IllegalStateException("[LEGACY ERROR] Circular @ForeignKey dependency between entity classes " + classes + ", flush them in separate sessions", e);
+        }
+        List<Class<?>> order = new ArrayList<>();
+        for (String name : sorted) {
+            order.add(byName.get(name));
+        }
+        return order;
+    }
+
+    private static Object identityKey(Object[] ids) {
+        return EntityCache.key(ids);
+    }
+}
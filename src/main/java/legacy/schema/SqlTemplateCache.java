@@ -0,0 +1,96 @@
+package legacy.schema;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Generated SQL text of one entity class, keyed by operation and by the set of columns the statement writes.
+ * The column set is encoded as a bitmask of column positions; reusing the exact same string lets the
+ * driver's server-side prepared statement cache hit on repeated saves.
+ */
+final class SqlTemplateCache {
+
+    enum Operation {
+        INSERT,
+        UPDATE,
+        UPDATE_RETURNING,
+        DELETE,
+        FIND_BY_ID,
+        FIND_BY_IDS
+    }
+
+    @FunctionalInterface
+    interface SqlBuilder {
+        String build() throws Exception;
+    }
+
+    // column shapes seen for one class are few in practice; past this, statements are simply rebuilt
+    static final int MAX_TEMPLATES = 256;
+
+    private record Key(Operation operation, long mask) {
+    }
+
+    private record Template(String[] columns, String sql) {
+        boolean matches(Collection<String> columnNames) {
+            if (columnNames.size() != columns.length) {
+                return false;
+            }
+            int i = 0;
+            for (String name : columnNames) {
+                if (!columns[i++].equals(name)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final EntityMetadata metadata;
+    private final Map<Key, Template> templates = new ConcurrentHashMap<>();
+
+    SqlTemplateCache(EntityMetadata metadata) {
+        this.metadata = metadata;
+    }
+
+    /**
+     * Returns the cached SQL for the operation and the given columns, in that order,
+     * building it with the builder on a miss.
+     */
+    String get(Operation operation, Collection<String> columnNames, SqlBuilder builder) throws Exception {
+        long mask = mask(columnNames);
+        if (mask < 0) {
+            return builder.build();
+        }
+        Key key = new Key(operation, mask);
+        Template template = templates.get(key);
+        if (template != null && template.matches(columnNames)) {
+            return template.sql();
+        }
+
+        String sql = builder.build();
+        if (template == null && templates.size() < MAX_TEMPLATES) {
+            templates.putIfAbsent(key, new Template(columnNames.toArray(new String[0]), sql));
+        }
+        return sql;
+    }
+
+    int size() {
+        return templates.size();
+    }
+
+    // -1 when a column can't be represented (unknown name or more than 63 columns)
+    private long mask(Collection<String> columnNames) {
+        long mask = 0L;
+        Iterator<String> it = columnNames.iterator();
+        while (it.hasNext()) {
+            ColumnData column = metadata.getColumn(it.next());
+            if (column == null || column.index >= Long.SIZE - 1) {
+                return -1L;
+            }
+            mask |= 1L << column.index;
+        }
+        return mask;
+    }
+}
@@ -3,44 +3,310 @@ package legacy.utils;
 import java.net.URI;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
 
 import javax.sql.DataSource;
 
+/**
+ * Connection pools, created on first use and configured from application.properties or the environment
+ * (the file wins). The default pool reads db.* / DB_*, a named pool db.<name>.* / DB_<NAME>_*:
+ * <pre>
+ * db.pool.maximumPoolSize=20            DB_POOL_MAXIMUM_POOL_SIZE=20
+ * db.driver.reWriteBatchedInserts=true  DB_DRIVER_RE_WRITE_BATCHED_INSERTS=true
+ * db.replica.url=jdbc:postgresql://...  DB_REPLICA_URL=jdbc:postgresql://...
+ * </pre>
+ * db.pool.* accepts the settings of POOL_SETTINGS, db.driver.* any PostgreSQL driver property.
+ * db.replicas lists the named datasources that serve reads (getReadConn), balanced as set by
+ * db.replicas.balancing (round-robin or least-loaded).
+ */
 public class DbConn {
 
-    private static final HikariDataSource dataSource;
+    public static final String DEFAULT = "default";
+
+    private static final Map<String, HikariDataSource> pools = new ConcurrentHashMap<>();
+    private static final Map<String, HikariConfig> configs = new ConcurrentHashMap<>();
+
+    // pool setting -> default value
+    private static final Map<String, Long> POOL_SETTINGS = new LinkedHashMap<>();
+    // driver properties also read from the environment; the properties file accepts any of them
+    private static final List<String> DRIVER_PROPERTIES = List.of(
+            "prepareThreshold", "reWriteBatchedInserts", "defaultRowFetchSize",
+            "preparedStatementCacheQueries", "preparedStatementCacheSizeMiB",
+            "tcpKeepAlive", "socketTimeout", "connectTimeout", "ApplicationName");
 
     static {
-        HikariConfig config = new HikariConfig();
+        POOL_SETTINGS.put("maximumPoolSize", 10L);
+        POOL_SETTINGS.put("minimumIdle", 2L);
+        POOL_SETTINGS.put("connectionTimeout", 3000L);
+        POOL_SETTINGS.put("idleTimeout", 600_000L);
+        POOL_SETTINGS.put("maxLifetime", 1_800_000L);
+    }
+
+    private static volatile Properties properties;
+
+    public enum Balancing {
+        ROUND_ROBIN,
+        // the replica with the fewest connections in use or awaited
+        LEAST_LOADED
+    }
+
+    // names of the replica datasources, read from db.replicas / DB_REPLICAS on first use
+    private static volatile List<String> replicas;
+    private static volatile Balancing balancing = Balancing.ROUND_ROBIN;
+    private static final AtomicInteger nextReplica = new AtomicInteger();
+
+    public static DataSource getDataSource() {
+        return getDataSource(DEFAULT);
+    }
+
+    public static DataSource getDataSource(String name) {
+        return pool(name);
+    }
+
+    public static Connection getConn() throws SQLException {
+        return getConn(DEFAULT);
+    }
+
+    public static Connection getConn(String name) throws SQLException {
+        return pool(name).getConnection();
+    }
+
+    /**
+     * A connection for read-only work: taken from one of the replicas, or from the default pool when
+     * no replica is configured or the chosen one cannot serve it.
+     */
+    public static Connection getReadConn() throws SQLException {
+        List<String> names = replicas();
+        if (names.isEmpty()) {
+            return getConn();
+        }
+        String name = pickReplica(names);
         try {
-            Map<String, String> confMap = getConf();
-            config.setJdbcUrl(confMap.get("url"));
-            config.setUsername(confMap.get("username"));
-            config.setPassword(confMap.get("password"));
+            return getConn(name);
+        } catch (SQLException | IllegalStateException e) {
+            return getConn();
+        }
+    }
 
-            config.setMaximumPoolSize(10);
-            config.setMinimumIdle(2);
-            config.setConnectionTimeout(3000);
-            config.setIdleTimeout(600_000);
+    /**
+     * Declares the named datasources that serve reads, replacing db.replicas.
+     */
+    public static void setReplicas(Balancing balancing, String... names) {
+        DbConn.balancing = balancing;
+        DbConn.replicas = List.of(names);
+    }
 
-            dataSource = new HikariDataSource(config);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+    public static List<String> getReplicas() {
+        return replicas();
+    }
+
+    private static List<String> replicas() {
+        List<String> names = replicas;
+        if (names == null) {
+            Properties properties = properties();
+            String value = setting(properties, "db.", "DB_", "replicas");
+            List<String> loaded = new ArrayList<>();
+            if (value != null) {
+                for (String name : value.split(",")) {
+                    if (!name.isBlank()) {
+                        loaded.add(name.trim());
+                    }
+                }
+            }
+            String mode = setting(properties, "db.", "DB_", "replicas.balancing");
+            if (mode != null) {
+                balancing = Balancing.valueOf(mode.trim().toUpperCase().replace('-', '_'));
+            }
+            names = List.copyOf(loaded);
+            replicas = names;
         }
+        return names;
     }
 
-    public static DataSource getDataSource() {
+    private static String pickReplica(List<String> names) {
+        int start = Math.floorMod(nextReplica.getAndIncrement(), names.size());
+        if (balancing == Balancing.ROUND_ROBIN) {
+            return names.get(start);
+        }
+        String best = names.get(start);
+        int bestLoad = Integer.MAX_VALUE;
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get((start + i) % names.size());
+            try {
+                HikariPoolMXBean stats = pool(name).getHikariPoolMXBean();
+                int load = stats == null ? 0 : stats.getActiveConnections() + stats.getThreadsAwaitingConnection();
+                if (load < bestLoad) {
+                    best = name;
+                    bestLoad = load;
+                }
+            } catch (IllegalStateException e) {
+                // pool could not be created, skip it
+            }
+        }
+        return best;
+    }
+
+    public static int getMaximumPoolSize() {
+        return getMaximumPoolSize(DEFAULT);
+    }
+
+    public static int getMaximumPoolSize(String name) {
+        return pool(name).getMaximumPoolSize();
+    }
+
+    // live statistics of the pools created so far, by datasource name
+    public static Map<String, HikariPoolMXBean> getPoolStatistics() {
+        Map<String, HikariPoolMXBean> statistics = new LinkedHashMap<>();
+        pools.forEach((name, dataSource) -> {
+            HikariPoolMXBean bean = dataSource.getHikariPoolMXBean();
+            if (bean != null) {
+                statistics.put(name, bean);
+            }
+        });
+        return statistics;
+    }
+
+    /**
+     * Configures a pool by code instead of properties. A pool already created under that name is
+     * closed, and the next connection comes from the new configuration.
+     */
+    public static void configure(String name, HikariConfig config) {
+        configs.put(name, config);
+        close(name);
+    }
+
+    public static void close(String name) {
+        HikariDataSource dataSource = pools.remove(name);
+        if (dataSource != null) {
+            dataSource.close();
+        }
+    }
+
+    public static void closeAll() {
+        for (String name : List.copyOf(pools.keySet())) {
+            close(name);
+        }
+    }
+
+    private static HikariDataSource pool(String name) {
+        HikariDataSource dataSource = pools.get(name);
+        if (dataSource == null) {
+            // a failed creation stores nothing, so the next call tries again
+            dataSource = pools.computeIfAbsent(name, DbConn::createPool);
+        }
         return dataSource;
     }
 
-    public static Connection getConn() throws SQLException {
-        return dataSource.getConnection();
+    private static HikariDataSource createPool(String name) {
+        try {
+            HikariConfig config = configs.get(name);
+            if (config == null) {
+                config = loadConfig(name);
+            }
+            return new HikariDataSource(config);
+        } catch (Exception e) {
+            throw new IllegalStateException("[LEGACY ERROR] Unable to create the connection pool '" + name + "': " + e.getMessage(), e);
+        }
+    }
+
+    private static HikariConfig loadConfig(String name) throws Exception {
+        boolean isDefault = DEFAULT.equals(name);
+        if (!isDefault && (name.equals("pool") || name.equals("driver") || name.equals("replicas"))) {
+            throw new IllegalArgumentException("'" + name + "' is reserved and cannot name a datasource");
+        }
+        String prefix = isDefault ? "db." : "db." + name + ".";
+        String envPrefix = isDefault ? "DB_" : "DB_" + name.toUpperCase() + "_";
+        Properties properties = properties();
+
+        HikariConfig config = new HikariConfig();
+        Map<String, String> confMap = isDefault ? getConf() : getNamedConf(name, prefix, envPrefix, properties);
+        config.setJdbcUrl(confMap.get("url"));
+        config.setUsername(confMap.get("username"));
+        config.setPassword(confMap.get("password"));
+        config.setPoolName("legacy-" + name);
+
+        Map<String, Long> pool = new HashMap<>(POOL_SETTINGS);
+        for (String setting : POOL_SETTINGS.keySet()) {
+            String value = setting(properties, prefix, envPrefix, "pool." + setting);
+            if (value != null) {
+                pool.put(setting, Long.parseLong(value.trim()));
+            }
+        }
+        config.setMaximumPoolSize(pool.get("maximumPoolSize").intValue());
+        config.setMinimumIdle(pool.get("minimumIdle").intValue());
+        config.setConnectionTimeout(pool.get("connectionTimeout"));
+        config.setIdleTimeout(pool.get("idleTimeout"));
+        config.setMaxLifetime(pool.get("maxLifetime"));
+
+        for (String property : DRIVER_PROPERTIES) {
+            String value = System.getenv(envPrefix + toEnvName("driver." + property));
+            if (value != null) {
+                config.addDataSourceProperty(property, value);
+            }
+        }
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(prefix + "driver.")) {
+                config.addDataSourceProperty(key.substring((prefix + "driver.").length()), properties.getProperty(key));
+            }
+        }
+        return config;
+    }
+
+    private static Map<String, String> getNamedConf(String name, String prefix, String envPrefix, Properties properties) {
+        String url = setting(properties, prefix, envPrefix, "url");
+        if (url == null) {
+            throw new IllegalStateException("No url configured for datasource '" + name + "' (" + prefix + "url or " + envPrefix + "URL)");
+        }
+        Map<String, String> confMap = new HashMap<>();
+        confMap.put("url", url);
+        confMap.put("username", setting(properties, prefix, envPrefix, "username"));
+        confMap.put("password", setting(properties, prefix, envPrefix, "password"));
+        return confMap;
+    }
+
+    private static String setting(Properties properties, String prefix, String envPrefix, String key) {
+        String value = properties.getProperty(prefix + key);
+        return value != null ? value : System.getenv(envPrefix + toEnvName(key));
+    }
+
+    // pool.maximumPoolSize -> POOL_MAXIMUM_POOL_SIZE
+    private static String toEnvName(String key) {
+        StringBuilder env = new StringBuilder();
+        for (char c : key.toCharArray()) {
+            if (c == '.') {
+                env.append('_');
+            } else if (Character.isUpperCase(c) && env.length() > 0 && env.charAt(env.length() - 1) != '_') {
+                env.append('_').append(c);
+            } else {
+                env.append(Character.toUpperCase(c));
+            }
+        }
+        return env.toString();
+    }
+
+    private static Properties properties() {
+        Properties loaded = properties;
+        if (loaded == null) {
+            try {
+                loaded = PropertyLoader.loadProperties("application.properties");
+            } catch (Exception e) {
+                // no file and no environment: every setting keeps its default
+                loaded = new Properties();
+            }
+            properties = loaded;
+        }
+        return loaded;
     }
 
     private static Map<String, String> getConf() throws Exception {
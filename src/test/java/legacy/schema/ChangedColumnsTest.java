@@ -0,0 +1,75 @@
+package legacy.schema;
+
+import legacy.annotations.Column;
+import legacy.annotations.Entity;
+import legacy.annotations.Id;
+import legacy.query.RawObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Columns update() writes for entities loaded with all or only some of their columns.
+ */
+class ChangedColumnsTest {
+
+    @Entity(tableName = "vol")
+    public static class Vol extends BaseEntity {
+        @Id
+        @Column
+        private Integer id;
+        @Column(name = "numero_vol", nullable = false)
+        private String numeroVol;
+        @Column(name = "statut", nullable = false)
+        private String statut;
+        @Column(name = "prix")
+        private Double prix;
+
+        public void setNumeroVol(String numeroVol) { this.numeroVol = numeroVol; }
+        public void setStatut(String statut) { this.statut = statut; }
+        public void setPrix(Double prix) { this.prix = prix; }
+    }
+
+    // a row read with FilterSet.select("id", "prix")
+    private static Vol loadPartial() throws Exception {
+        Map<String, Object> row = new HashMap<>();
+        row.put("id", 1);
+        row.put("prix", 120.0);
+        return new RawObject(row).toEntity(Vol.class);
+    }
+
+    @Test
+    void partialEntityOnlyWritesTheColumnSet() throws Exception {
+        Vol vol = loadPartial();
+        vol.setPrix(99.0);
+        assertEquals(Map.of("prix", 99.0), vol.getChangedColumns());
+    }
+
+    @Test
+    void partialEntityWritesUnselectedColumnsOnceSet() throws Exception {
+        Vol vol = loadPartial();
+        vol.setStatut("ANNULE");
+        assertEquals(Map.of("statut", "ANNULE"), vol.getChangedColumns());
+    }
+
+    @Test
+    void untouchedPartialEntityWritesNothing() throws Exception {
+        assertTrue(loadPartial().getChangedColumns().isEmpty());
+    }
+
+    @Test
+    void loadedNonNullableColumnSetToNullIsRejected() throws Exception {
+        Map<String, Object> row = new HashMap<>();
+        row.put("id", 1);
+        row.put("numero_vol", "AF1234");
+        row.put("statut", "PREVU");
+        Vol vol = new RawObject(row).toEntity(Vol.class);
+        vol.setNumeroVol(null);
+        assertThrows(IllegalArgumentException.class, vol::getChangedColumns);
+    }
+}
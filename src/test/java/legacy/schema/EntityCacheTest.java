@@ -0,0 +1,87 @@
+package legacy.schema;
+
+import legacy.annotations.Column;
+import legacy.annotations.Entity;
+import legacy.annotations.Id;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Timestamp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * EntityCache without a database: entries are put and read directly, as findById does.
+ */
+class EntityCacheTest {
+
+    @Entity(tableName = "document")
+    public static class Document extends BaseEntity {
+        @Id
+        @Column
+        private Integer id;
+        @Column(name = "modifie_le")
+        private Timestamp modifieLe;
+        @Column(name = "contenu")
+        private byte[] contenu;
+
+        public Integer getId() { return id; }
+        public void setId(Integer id) { this.id = id; }
+        public Timestamp getModifieLe() { return modifieLe; }
+        public void setModifieLe(Timestamp modifieLe) { this.modifieLe = modifieLe; }
+        public byte[] getContenu() { return contenu; }
+        public void setContenu(byte[] contenu) { this.contenu = contenu; }
+    }
+
+    private static final Object[] IDS = {1};
+
+    private static EntityCache cacheHolding(Document document) {
+        EntityCache cache = new EntityCache(EntityMetadata.of(Document.class), 10, 60);
+        cache.put(IDS, document, cache.generation(IDS));
+        return cache;
+    }
+
+    private static Document document() {
+        Document document = new Document();
+        document.setId(1);
+        document.setModifieLe(new Timestamp(1_000L));
+        document.setContenu(new byte[] {1, 2, 3});
+        return document;
+    }
+
+    @Test
+    void mutatingAHitDoesNotChangeTheNextHit() throws Exception {
+        EntityCache cache = cacheHolding(document());
+
+        Document first = cache.get(IDS, Document.class);
+        first.getModifieLe().setTime(2_000L);
+        first.getContenu()[0] = 9;
+
+        Document second = cache.get(IDS, Document.class);
+        assertEquals(1_000L, second.getModifieLe().getTime());
+        assertArrayEquals(new byte[] {1, 2, 3}, second.getContenu());
+    }
+
+    @Test
+    void mutatingTheCachedEntityDoesNotChangeTheCache() throws Exception {
+        Document document = document();
+        EntityCache cache = cacheHolding(document);
+
+        document.getModifieLe().setTime(2_000L);
+        document.getContenu()[0] = 9;
+
+        Document hit = cache.get(IDS, Document.class);
+        assertEquals(1_000L, hit.getModifieLe().getTime());
+        assertArrayEquals(new byte[] {1, 2, 3}, hit.getContenu());
+    }
+
+    @Test
+    void putAfterAnInvalidationIsDropped() throws Exception {
+        EntityCache cache = new EntityCache(EntityMetadata.of(Document.class), 10, 60);
+        long generation = cache.generation(IDS);
+        cache.invalidate(IDS);
+        cache.put(IDS, document(), generation);
+        assertNull(cache.get(IDS, Document.class));
+    }
+}
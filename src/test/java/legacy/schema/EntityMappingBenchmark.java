@@ -0,0 +1,106 @@
+package legacy.schema;
+
+import legacy.annotations.Column;
+import legacy.annotations.Entity;
+import legacy.annotations.Generated;
+import legacy.annotations.Id;
+import legacy.query.RawObject;
+import legacy.strategy.GeneratedAfterPersistence;
+import legacy.strategy.TimestampStrategy;
+
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Micro-benchmark of the entity mapping paths, without a database: RawObject.toEntity (hydration)
+ * and prepareFieldsBeforeSave (dehydration before an insert), on an 8-column entity.
+ * <pre>
+ * mvn -q test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/classes:target/test-classes:$(cat target/cp.txt) legacy.schema.EntityMappingBenchmark
+ * </pre>
+ * Run it on the commits before and after a mapping change; the first rounds are warm-up.
+ */
+public class EntityMappingBenchmark {
+
+    private static final int ITERATIONS = 1_000_000;
+    private static final int ROUNDS = 5;
+
+    @Entity(tableName = "vol")
+    public static class Vol extends BaseEntity {
+        @Id
+        @Column
+        @Generated(strategy = GeneratedAfterPersistence.class)
+        private Integer id;
+        @Column(name = "numero_vol")
+        private String numeroVol;
+        @Column(name = "places")
+        private Integer places;
+        @Column(name = "prix")
+        private Double prix;
+        @Column(name = "date_depart")
+        @Generated(strategy = TimestampStrategy.class)
+        private Timestamp dateDepart;
+        @Column(name = "code")
+        private String code;
+        @Column(name = "distance")
+        private Long distance;
+        @Column(name = "statut")
+        private String statut;
+
+        public Integer getId() { return id; }
+        public void setId(Integer id) { this.id = id; }
+        public String getNumeroVol() { return numeroVol; }
+        public void setNumeroVol(String numeroVol) { this.numeroVol = numeroVol; }
+        public Integer getPlaces() { return places; }
+        public void setPlaces(Integer places) { this.places = places; }
+        public Double getPrix() { return prix; }
+        public void setPrix(Double prix) { this.prix = prix; }
+        public Timestamp getDateDepart() { return dateDepart; }
+        public void setDateDepart(Timestamp dateDepart) { this.dateDepart = dateDepart; }
+        public String getCode() { return code; }
+        public void setCode(String code) { this.code = code; }
+        public Long getDistance() { return distance; }
+        public void setDistance(Long distance) { this.distance = distance; }
+        public String getStatut() { return statut; }
+        public void setStatut(String statut) { this.statut = statut; }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, Object> row = new HashMap<>();
+        row.put("id", 1);
+        row.put("numero_vol", "AF1234");
+        row.put("places", 180);
+        row.put("prix", new BigDecimal("249.90"));
+        row.put("date_depart", new Timestamp(0));
+        row.put("code", "CDG");
+        row.put("distance", 5837);
+        row.put("statut", "PREVU");
+        RawObject raw = new RawObject(row);
+
+        // private since the baseline: reached by reflection so that the same harness runs on every commit
+        Method prepare = BaseEntity.class.getDeclaredMethod("prepareFieldsBeforeSave");
+        prepare.setAccessible(true);
+        Vol vol = raw.toEntity(Vol.class);
+
+        Object sink = null;
+        for (int round = 1; round <= ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                sink = raw.toEntity(Vol.class);
+            }
+            long hydrated = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                sink = prepare.invoke(vol);
+            }
+            long prepared = System.nanoTime();
+            System.out.printf("round %d: RawObject.toEntity %.0f ns/op, BaseEntity.prepareFieldsBeforeSave %.0f ns/op%n",
+                    round, (hydrated - start) / (double) ITERATIONS, (prepared - hydrated) / (double) ITERATIONS);
+        }
+        if (sink == null) {
+            System.out.println();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package legacy.schema;
+
+import legacy.annotations.Column;
+import legacy.annotations.Entity;
+import legacy.annotations.Id;
+import legacy.query.FilterSet;
+import legacy.query.SortDirection;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * SQL built from a FilterSet, checked through FilterSet.compile so that no database is needed.
+ */
+class FilterSqlTest {
+
+    @Entity(tableName = "vol")
+    public static class Vol extends BaseEntity {
+        @Id
+        @Column
+        private Integer id;
+        @Column(name = "numero_vol")
+        private String numeroVol;
+        @Column(name = "prix")
+        private Double prix;
+    }
+
+    @Test
+    void orderByAppendsTheIdAsTiebreaker() {
+        FilterSet filterSet = new FilterSet().orderBy("prix", SortDirection.DESC).limit(10);
+        assertEquals("SELECT * FROM vol WHERE 1 = 1 ORDER BY prix DESC, id DESC LIMIT ?", filterSet.compile(Vol.class).getSql());
+    }
+
+    @Test
+    void unknownSortColumnIsRejected() {
+        FilterSet filterSet = new FilterSet().orderBy("montant");
+        assertThrows(IllegalArgumentException.class, () -> filterSet.compile(Vol.class));
+    }
+
+    @Test
+    void injectedSortColumnIsRejected() {
+        FilterSet filterSet = new FilterSet().orderBy("prix; drop table vol --");
+        assertThrows(IllegalArgumentException.class, () -> filterSet.compile(Vol.class));
+    }
+
+    @Test
+    void injectedSortColumnIsRejectedInKeyset() {
+        FilterSet filterSet = new FilterSet().orderBy("prix) or (1 = 1").after(10.0, 1);
+        assertThrows(IllegalArgumentException.class, () -> filterSet.compile(Vol.class));
+    }
+}